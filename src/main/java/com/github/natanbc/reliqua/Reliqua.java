@@ -1,15 +1,37 @@
 package com.github.natanbc.reliqua;
 
 import com.github.natanbc.reliqua.limiter.DefaultRateLimiter;
+import com.github.natanbc.reliqua.limiter.LimiterSnapshot;
 import com.github.natanbc.reliqua.limiter.RateLimiter;
 import com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory;
+import com.github.natanbc.reliqua.request.ShutdownException;
+import com.github.natanbc.reliqua.util.ClientOverrides;
+import com.github.natanbc.reliqua.util.ConnectionSettings;
 import com.github.natanbc.reliqua.util.PendingRequestBuilder;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.Response;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Used to create REST API wrappers, providing a rate limiter and easy way to have both synchronous and asynchronous
@@ -17,10 +39,27 @@ import java.util.Objects;
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public abstract class Reliqua {
+    private static final long DRAIN_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_DERIVED_CLIENTS = 32;
+
     private final RateLimiterFactory rateLimiterFactory;
     private final OkHttpClient client;
+    // least recently used first, evicted clients need no cleanup since they share the main client's resources
+    private final Map<ClientOverrides, OkHttpClient> derivedClients = new LinkedHashMap<ClientOverrides, OkHttpClient>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ClientOverrides, OkHttpClient> eldest) {
+            return size() > MAX_DERIVED_CLIENTS;
+        }
+    };
     private boolean trackCallSites;
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
+    private volatile boolean terminated = false;
+    private LimiterSnapshot limiterSnapshot;
+    private volatile Executor mapperExecutor;
+    private ExecutorService mapperPool;
+    // responses handed to the mapper executor which weren't mapped yet
+    private final AtomicInteger pendingMappings = new AtomicInteger();
+    private final List<Runnable> shutdownListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Creates a new reliqua instance.
@@ -50,14 +89,23 @@ public abstract class Reliqua {
         this(client, null, false);
     }
 
+    /**
+     * Creates a new reliqua with a client created from the given connection settings.
+     *
+     * @param connectionSettings Connection and concurrency settings for the client. May not be null.
+     * @param rateLimiterFactory Factory used to create rate limiters. May be null.
+     * @param trackCallSites Whether or not call sites should be tracked for async requests.
+     */
+    protected Reliqua(ConnectionSettings connectionSettings, RateLimiterFactory rateLimiterFactory, boolean trackCallSites) {
+        this(Objects.requireNonNull(connectionSettings, "Connection settings may not be null").createClient(),
+                rateLimiterFactory, trackCallSites);
+    }
+
     /**
      * Creates a new reliqua with no rate limiter and with call site tracking disabled.
      */
     protected Reliqua() {
-        this(new OkHttpClient.Builder()
-                .followRedirects(false)
-                .followSslRedirects(true)
-                .build());
+        this(new ConnectionSettings(), null, false);
     }
 
     /**
@@ -71,6 +119,27 @@ public abstract class Reliqua {
         return client;
     }
 
+    /**
+     * Returns a client with the given overrides applied to the {@link #getClient() main client}. Derived clients share
+     * the main client's connection pool and dispatcher, and are cached, so requests with equal overrides share one.
+     * Only the 32 most recently used are kept, so overrides should come from a small set of reused instances rather
+     * than being built per request.
+     *
+     * @param overrides The overridden settings, or null for the main client.
+     *
+     * @return A client with the overrides applied.
+     */
+    @CheckReturnValue
+    @Nonnull
+    public OkHttpClient getClient(@Nullable ClientOverrides overrides) {
+        if(overrides == null || overrides.isEmpty()) {
+            return client;
+        }
+        synchronized(derivedClients) {
+            return derivedClients.computeIfAbsent(overrides, o -> o.apply(client.newBuilder()).build());
+        }
+    }
+
     /**
      * Enable or disable call site tracking.
      *
@@ -90,6 +159,84 @@ public abstract class Reliqua {
         return trackCallSites;
     }
 
+    /**
+     * Sets the executor successful responses are read and mapped on. By default they're mapped on the rate limiter's
+     * thread, which can't send the next request of its bucket until mapping is done. Error responses are still
+     * handled on the rate limiter's thread.
+     *
+     * @param mapperExecutor The executor to map responses on, or null to map them on the rate limiter's thread.
+     */
+    public synchronized void setMapperExecutor(@Nullable Executor mapperExecutor) {
+        if(mapperPool != null && mapperPool != mapperExecutor) {
+            mapperPool.shutdown();
+            mapperPool = null;
+        }
+        this.mapperExecutor = mapperExecutor == null ? null : track(mapperExecutor);
+    }
+
+    private Executor track(Executor executor) {
+        return task -> {
+            pendingMappings.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        pendingMappings.decrementAndGet();
+                    }
+                });
+            } catch(RuntimeException e) {
+                pendingMappings.decrementAndGet();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Maps successful responses on a pool owned by this instance, which is shut down with it.
+     *
+     * <br>Once {@code queueSize} responses are waiting for a thread, the rate limiter maps the response itself
+     * instead, so a slow mapper slows down its bucket rather than queueing responses without bound.
+     *
+     * @param threads How many responses may be mapped at once.
+     * @param queueSize How many responses may wait for a thread.
+     *
+     * @see #setMapperExecutor(Executor)
+     */
+    public synchronized void setMapperPool(int threads, int queueSize) {
+        if(threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Threads and queue size must be positive");
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "Reliqua mapper " + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, (task, executor) -> {
+                    // unlike CallerRunsPolicy, throws once shut down so the request maps its response itself
+                    // instead of the task being discarded
+                    if(executor.isShutdown()) {
+                        throw new RejectedExecutionException("Mapper pool was shut down");
+                    }
+                    task.run();
+                });
+        pool.allowCoreThreadTimeOut(true);
+        setMapperExecutor(pool);
+        this.mapperPool = pool;
+    }
+
+    /**
+     * Returns the executor successful responses are mapped on.
+     *
+     * @return The mapper executor, or null if responses are mapped on the rate limiter's thread.
+     */
+    @Nullable
+    @CheckReturnValue
+    public Executor getMapperExecutor() {
+        return mapperExecutor;
+    }
+
     /**
      * Returns the rate limiter factory used to create limiters.
      *
@@ -103,11 +250,185 @@ public abstract class Reliqua {
         return this.shutdown;
     }
 
+    /**
+     * Registers a task run once this instance starts shutting down, before queued requests are drained. Used to hand
+     * over requests which aren't queued in a rate limiter yet, such as the pending batches of a
+     * {@link com.github.natanbc.reliqua.util.RequestBatcher RequestBatcher}.
+     *
+     * @param listener The task to run.
+     */
+    public void addShutdownListener(@Nonnull Runnable listener) {
+        shutdownListeners.add(Objects.requireNonNull(listener, "Listener may not be null"));
+    }
+
+    /**
+     * Removes a task registered with {@link #addShutdownListener(Runnable)}.
+     *
+     * @param listener The task to remove.
+     */
+    public void removeShutdownListener(@Nonnull Runnable listener) {
+        shutdownListeners.remove(listener);
+    }
+
+    /**
+     * Returns whether or not the deadline of a {@link #shutdown(long, TimeUnit) draining shutdown} has passed.
+     * Responses received after it fail with a {@link ShutdownException} instead of being mapped.
+     *
+     * @return true if the drain deadline has passed.
+     */
+    public boolean isTerminated() {
+        return this.terminated;
+    }
+
+    /**
+     * Shuts down this instance. New requests fail with a {@link ShutdownException}, requests already queued are still
+     * sent by their rate limiters, with no deadline.
+     *
+     * @throws Exception If a rate limiter fails to close.
+     *
+     * @see #shutdown(long, TimeUnit)
+     */
     public void shutdown() throws Exception {
         this.shutdown = true;
+        runShutdownListeners();
+        close(0);
+    }
+
+    /**
+     * Shuts down this instance, draining outstanding requests for up to the given time. New requests fail with a
+     * {@link ShutdownException} right away, while queued requests keep being sent as their buckets allow, and
+     * responses already received are mapped. Requests still queued at the deadline fail with a
+     * {@link ShutdownException}, and so do calls still running once their response arrives.
+     *
+     * @param timeout Maximum time to drain for.
+     * @param unit Unit of the timeout.
+     *
+     * @return What happened to the outstanding requests.
+     *
+     * @throws Exception If a rate limiter fails to close.
+     */
+    @Nonnull
+    public ShutdownStats shutdown(long timeout, @Nonnull TimeUnit unit) throws Exception {
+        if(timeout < 0) {
+            throw new IllegalArgumentException("Timeout may not be negative");
+        }
+        final long start = System.nanoTime();
+        final long deadline = start + unit.toNanos(timeout);
+        this.shutdown = true;
+        runShutdownListeners();
+
+        final int queued = rateLimiterFactory.getQueuedRequests();
+        while(rateLimiterFactory.getQueuedRequests() > 0 && awaitDeadline(deadline)) {}
+        final int dropped = rateLimiterFactory.failQueued(() -> new ShutdownException("Request was still queued when the shutdown deadline passed"));
+        while((client.dispatcher().runningCallsCount() > 0 || pendingMappings.get() > 0) && awaitDeadline(deadline)) {}
+        final int abandonedCalls = client.dispatcher().runningCallsCount();
+
+        close(deadline);
+        this.terminated = true;
+        return new ShutdownStats(queued, Math.max(0, queued - dropped), dropped, abandonedCalls, pendingMappings.get(),
+                System.nanoTime() - start);
+    }
+
+    private void runShutdownListeners() {
+        for(Runnable listener : shutdownListeners) {
+            try {
+                listener.run();
+            } catch(RuntimeException e) {
+                // the others still get to run, and the shutdown goes on
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // waits for the owned mapper pool until the deadline, if there's one
+    private void close(long deadline) throws Exception {
+        this.limiterSnapshot = this.rateLimiterFactory.snapshot();
         this.rateLimiterFactory.shutdownAllRateLimiters();
         this.client.connectionPool().evictAll();
         this.client.dispatcher().executorService().shutdown();
+        synchronized(this) {
+            if(mapperPool != null) {
+                mapperPool.shutdown();
+                if(deadline != 0) {
+                    mapperPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
+
+    private static boolean awaitDeadline(long deadline) throws InterruptedException {
+        final long left = deadline - System.nanoTime();
+        if(left <= 0) {
+            return false;
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.min(left, DRAIN_POLL_INTERVAL));
+        return true;
+    }
+
+    /**
+     * Returns the state of the rate limiters saved by {@link #shutdown()}, which can be
+     * {@link LimiterSnapshot#write(java.io.OutputStream) written} somewhere and restored by the next instance with
+     * {@link #restoreRateLimiters(LimiterSnapshot)}.
+     *
+     * @return The saved state, or null if this instance wasn't shut down yet.
+     */
+    @Nullable
+    @CheckReturnValue
+    public LimiterSnapshot getLimiterSnapshot() {
+        return limiterSnapshot;
+    }
+
+    /**
+     * Restores rate limiter state saved by a previous instance, so buckets start with their known limits instead of
+     * discovering them from scratch.
+     *
+     * @param snapshot The saved state.
+     */
+    public void restoreRateLimiters(@Nonnull LimiterSnapshot snapshot) {
+        rateLimiterFactory.restore(Objects.requireNonNull(snapshot, "Snapshot may not be null"));
+    }
+
+    /**
+     * Opens connections to the given urls ahead of time, so the first real requests don't pay for DNS, TCP and TLS
+     * setup. A HEAD request is sent to each url, bypassing the rate limiters, so they should point to cheap endpoints.
+     *
+     * <br>Failures are ignored, the returned future completes once every warm-up request has finished.
+     *
+     * @param urls Urls to connect to.
+     *
+     * @return A future completed when warming up is done.
+     */
+    @Nonnull
+    public CompletionStage<Void> warmUp(@Nonnull String... urls) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final AtomicInteger remaining = new AtomicInteger(urls.length);
+        if(urls.length == 0) {
+            future.complete(null);
+            return future;
+        }
+
+        final Callback callback = new Callback() {
+            @Override
+            public void onFailure(@Nonnull Call call, @Nonnull IOException e) {
+                done();
+            }
+
+            @Override
+            public void onResponse(@Nonnull Call call, @Nonnull Response response) {
+                response.close();
+                done();
+            }
+
+            private void done() {
+                if(remaining.decrementAndGet() == 0) {
+                    future.complete(null);
+                }
+            }
+        };
+        for(String url : urls) {
+            client.newCall(new Request.Builder().url(url).head().build()).enqueue(callback);
+        }
+        return future;
     }
 
     /**
@@ -0,0 +1,108 @@
+package com.github.natanbc.reliqua;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happened to the outstanding requests of a {@link Reliqua#shutdown(long, TimeUnit) draining shutdown}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ShutdownStats {
+    private final int queued;
+    private final int flushed;
+    private final int dropped;
+    private final int abandonedCalls;
+    private final int abandonedMappings;
+    private final long elapsedNanos;
+
+    ShutdownStats(int queued, int flushed, int dropped, int abandonedCalls, int abandonedMappings, long elapsedNanos) {
+        this.queued = queued;
+        this.flushed = flushed;
+        this.dropped = dropped;
+        this.abandonedCalls = abandonedCalls;
+        this.abandonedMappings = abandonedMappings;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns how many requests were waiting in rate limiter queues when the shutdown started.
+     *
+     * @return The queued requests.
+     */
+    @CheckReturnValue
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Returns how many of the queued requests left their queue before the deadline.
+     *
+     * @return The flushed requests.
+     */
+    @CheckReturnValue
+    public int getFlushed() {
+        return flushed;
+    }
+
+    /**
+     * Returns how many queued requests were failed with a
+     * {@link com.github.natanbc.reliqua.request.ShutdownException ShutdownException} once the deadline passed.
+     *
+     * @return The dropped requests.
+     */
+    @CheckReturnValue
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns how many HTTP calls were still running when the deadline passed. Their requests fail with a
+     * {@link com.github.natanbc.reliqua.request.ShutdownException ShutdownException} once the response arrives.
+     *
+     * @return The calls still running.
+     */
+    @CheckReturnValue
+    public int getAbandonedCalls() {
+        return abandonedCalls;
+    }
+
+    /**
+     * Returns how many responses were still waiting for or being mapped on the
+     * {@link Reliqua#getMapperExecutor() mapper executor} when the deadline passed.
+     *
+     * @return The responses not mapped yet.
+     */
+    @CheckReturnValue
+    public int getAbandonedMappings() {
+        return abandonedMappings;
+    }
+
+    /**
+     * Returns how long the shutdown took.
+     *
+     * @param unit Unit of the returned value.
+     *
+     * @return The time spent draining.
+     */
+    @CheckReturnValue
+    public long getElapsed(@Nonnull TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns whether or not every outstanding request finished before the deadline.
+     *
+     * @return true if nothing was dropped or abandoned.
+     */
+    @CheckReturnValue
+    public boolean isComplete() {
+        return dropped == 0 && abandonedCalls == 0 && abandonedMappings == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownStats(queued=" + queued + ", flushed=" + flushed + ", dropped=" + dropped
+                + ", abandonedCalls=" + abandonedCalls + ", abandonedMappings=" + abandonedMappings + ", elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms)";
+    }
+}
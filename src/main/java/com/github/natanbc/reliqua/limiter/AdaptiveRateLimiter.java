@@ -0,0 +1,417 @@
+package com.github.natanbc.reliqua.limiter;
+
+import com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory;
+import com.github.natanbc.reliqua.request.PendingRequest;
+import com.github.natanbc.reliqua.request.RequestException;
+import com.github.natanbc.reliqua.request.RequestRejectedException;
+import com.github.natanbc.reliqua.request.ShutdownException;
+import okhttp3.Response;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Rate limiter for APIs which don't report their rate limits. Instead of a request budget, it limits how many
+ * requests are in flight at once, and adjusts that limit from the latency and errors it observes, finding the
+ * highest concurrency the API sustains without having to configure it.
+ *
+ * <br>Responses with a 429 or 5xx status code and requests failing with an I/O error count as drops, shrinking the
+ * limit at most once per round trip. A 429 also pauses the limiter for the time given by its {@code Retry-After}
+ * header, and the request is retried afterwards.
+ *
+ * <br>Requests wait in a queue bounded by the limiter's {@link QueueSettings}. Requests retried after a 429 were
+ * already admitted, so they're resent before queued requests and don't count against its capacity.
+ *
+ * @see Algorithm
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class AdaptiveRateLimiter extends RateLimiter {
+    /**
+     * How the concurrency limit is adjusted after each request.
+     */
+    public enum Algorithm {
+        /**
+         * Additive increase, multiplicative decrease. The limit grows by about 1 for each limit's worth of successful
+         * requests and halves on drops. Only reacts to drops, not latency.
+         */
+        AIMD,
+        /**
+         * Compares each request's latency with the lowest recent latency. Once latency rises well above it, requests
+         * are queueing up on the server and the limit shrinks proportionally; while latency stays close to it, the
+         * limit grows by a small headroom. Drops halve the limit.
+         */
+        GRADIENT
+    }
+
+    private static final double BACKOFF_RATIO = 0.5;
+    // latency may go this much above the lowest recent latency before the limit shrinks
+    private static final double RTT_TOLERANCE = 1.5;
+    // the lowest latency slowly drifts up by this ratio per sample, so a single unusually fast request or a server
+    // which got permanently slower don't hold the limit down forever
+    private static final double MIN_RTT_DRIFT = 1.001;
+
+    protected final ExecutorService executor;
+    protected final ScheduledExecutorService scheduler;
+    protected final Algorithm algorithm;
+    protected final int minLimit;
+    protected final int maxLimit;
+    protected final RateLimitHeaders headers;
+    protected final RequestQueue pendingRequests;
+
+    // requests which got a 429, guarded by this
+    private final ArrayDeque<LimiterPair> retries = new ArrayDeque<>();
+    // threads sending requests, requests they queue can't wait for room since they're the ones making it
+    private final Set<Thread> runners = ConcurrentHashMap.newKeySet();
+
+    private final RateLimitHeaders.Values headerValues = new RateLimitHeaders.Values();
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private boolean dispatchScheduled;
+    private long lastBackoffNanos = System.nanoTime();
+    private double minRttNanos = Double.MAX_VALUE;
+    private volatile Supplier<? extends RequestException> failure;
+
+    /**
+     * Creates a new adaptive rate limiter.
+     *
+     * @param executor Executor running the requests. Must be able to run {@code maxLimit} tasks at once.
+     * @param scheduler Executor used to resume after a 429.
+     * @param algorithm How the limit is adjusted.
+     * @param initialLimit Concurrency limit to start with.
+     * @param minLimit Lowest the limit may go.
+     * @param maxLimit Highest the limit may go.
+     * @param headers The headers the API uses for {@code Retry-After}.
+     * @param queueSettings Bounds of the queue of requests waiting for this limiter.
+     */
+    public AdaptiveRateLimiter(@Nonnull ExecutorService executor, @Nonnull ScheduledExecutorService scheduler,
+                               @Nonnull Algorithm algorithm, int initialLimit, int minLimit, int maxLimit,
+                               @Nonnull RateLimitHeaders headers, @Nonnull QueueSettings queueSettings) {
+        if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        this.executor = Objects.requireNonNull(executor, "Executor may not be null");
+        this.scheduler = Objects.requireNonNull(scheduler, "Scheduler may not be null");
+        this.algorithm = Objects.requireNonNull(algorithm, "Algorithm may not be null");
+        this.headers = Objects.requireNonNull(headers, "Headers may not be null");
+        this.pendingRequests = Objects.requireNonNull(queueSettings, "Queue settings may not be null").createQueue();
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Creates a new adaptive rate limiter with an unbounded queue.
+     *
+     * @param executor Executor running the requests. Must be able to run {@code maxLimit} tasks at once.
+     * @param scheduler Executor used to resume after a 429.
+     * @param algorithm How the limit is adjusted.
+     * @param initialLimit Concurrency limit to start with.
+     * @param minLimit Lowest the limit may go.
+     * @param maxLimit Highest the limit may go.
+     * @param headers The headers the API uses for {@code Retry-After}.
+     */
+    public AdaptiveRateLimiter(@Nonnull ExecutorService executor, @Nonnull ScheduledExecutorService scheduler,
+                               @Nonnull Algorithm algorithm, int initialLimit, int minLimit, int maxLimit,
+                               @Nonnull RateLimitHeaders headers) {
+        this(executor, scheduler, algorithm, initialLimit, minLimit, maxLimit, headers, new QueueSettings());
+    }
+
+    @Override
+    public void queue(@Nonnull LimiterPair task) {
+        if(!pendingRequests.enqueue(task, !runners.contains(Thread.currentThread()))) {
+            task.getRequest().future.completeExceptionally(new RequestRejectedException("Rate limiter queue is full"));
+            return;
+        }
+        // queued after failQueued emptied the queue, nothing will send it anymore
+        final Supplier<? extends RequestException> error = failure;
+        if(error != null && pendingRequests.remove(task)) {
+            task.getRequest().future.completeExceptionally(error.get());
+            return;
+        }
+        dispatch();
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        synchronized(this) {
+            return retries.size() + pendingRequests.size();
+        }
+    }
+
+    @Override
+    public int failQueued(@Nonnull Supplier<? extends RequestException> error) {
+        failure = Objects.requireNonNull(error, "Error may not be null");
+        final List<LimiterPair> left;
+        synchronized(this) {
+            left = new ArrayList<>(retries);
+            retries.clear();
+        }
+        pendingRequests.drainTo(left);
+        int failed = 0;
+        for(LimiterPair pair : left) {
+            if(pair.getRequest().future.completeExceptionally(error.get())) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public synchronized int getRemainingRequests() {
+        return Math.max(0, (int) limit - inFlight);
+    }
+
+    @Override
+    public synchronized long getTimeUntilReset() {
+        return Math.max(0, retryAfter());
+    }
+
+    @Override
+    public synchronized boolean isRateLimit() {
+        return retryAfter() > 0 || inFlight >= (int) limit;
+    }
+
+    @Override
+    public synchronized long retryAfter() {
+        return pausedUntil - System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     *
+     * @return The concurrency limit.
+     */
+    @CheckReturnValue
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns how many requests are currently in flight.
+     *
+     * @return The requests in flight.
+     */
+    @CheckReturnValue
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public void update(@Nonnull Response response) {
+        if(response.code() == RATE_LIMIT_CODE) {
+            synchronized(this) {
+                headers.extract(response.headers(), headerValues);
+                final long retryAfter = headerValues.getRetryAfter();
+                final long delay = retryAfter == RateLimitHeaders.Values.MISSING ? 1000 : retryAfter * 1000;
+                pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + delay);
+            }
+        }
+    }
+
+    @Override
+    public void backoffQueue() {
+        // the 429 was already recorded by update, the request is requeued once it returns
+    }
+
+    @Override
+    public void close() {}
+
+    private void dispatch() {
+        final List<LimiterPair> rejected = new ArrayList<>(0);
+        boolean shutDown = false;
+        synchronized(this) {
+            final long delay = retryAfter();
+            if(delay > 0) {
+                if(!dispatchScheduled && (!retries.isEmpty() || !pendingRequests.isEmpty())) {
+                    try {
+                        scheduler.schedule(() -> {
+                            synchronized(this) {
+                                dispatchScheduled = false;
+                            }
+                            dispatch();
+                        }, delay, TimeUnit.MILLISECONDS);
+                        dispatchScheduled = true;
+                    } catch(RejectedExecutionException e) {
+                        shutDown = true;
+                    }
+                }
+                if(!shutDown) return;
+            }
+            while(inFlight < (int) limit) {
+                final LimiterPair pair = retries.isEmpty() ? pendingRequests.poll() : retries.pollFirst();
+                if(pair == null) break;
+                if(pair.getRequest().isHandled()) continue;
+                try {
+                    executor.execute(() -> run(pair));
+                } catch(RejectedExecutionException e) {
+                    rejected.add(pair);
+                    continue;
+                }
+                // run waits for the lock before decrementing, so this can't happen after it
+                inFlight++;
+            }
+        }
+        // completed outside the lock, since completing runs the request's callbacks
+        for(LimiterPair pair : rejected) {
+            pair.getRequest().future.completeExceptionally(new ShutdownException("Rate limiter executor was shut down"));
+        }
+        if(shutDown) {
+            failQueued(() -> new ShutdownException("Rate limiter was shut down"));
+        }
+    }
+
+    private void run(LimiterPair pair) {
+        final long start = System.nanoTime();
+        final Thread thread = Thread.currentThread();
+        runners.add(thread);
+        try {
+            pair.getRunnable().run();
+        } finally {
+            runners.remove(thread);
+            final long rtt = System.nanoTime() - start;
+            final PendingRequest<?> request = pair.getRequest();
+            final boolean retry = !request.isHandled();
+            synchronized(this) {
+                inFlight--;
+                onSample(start, rtt, isDrop(request));
+            }
+            if(retry) {
+                boolean retried = false;
+                synchronized(this) {
+                    // checked under the lock, so failQueued either sees the retry or this sees its failure
+                    if(failure == null) {
+                        retries.addLast(pair);
+                        retried = true;
+                    }
+                }
+                if(!retried) {
+                    request.future.completeExceptionally(failure.get());
+                }
+            }
+            dispatch();
+        }
+    }
+
+    private void onSample(long startNanos, long rttNanos, boolean drop) {
+        if(drop) {
+            // requests sent before the last backoff were sent with the old limit, so a burst of them failing
+            // together only shrinks the limit once
+            if(startNanos - lastBackoffNanos >= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastBackoffNanos = System.nanoTime();
+            }
+            return;
+        }
+        // only grow when at least half of the limit was in use, otherwise it says nothing about what the server
+        // sustains and the limit would creep up during quiet periods
+        final boolean grow = (inFlight + 1) * 2 >= limit;
+        switch(algorithm) {
+            case AIMD:
+                if(grow) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                break;
+            case GRADIENT:
+                minRttNanos = Math.min(rttNanos, minRttNanos * MIN_RTT_DRIFT);
+                final double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * minRttNanos / Math.max(1, rttNanos)));
+                final double newLimit = limit * gradient + (grow ? Math.sqrt(limit) : 0);
+                // about limit samples arrive per round trip, so each moves the limit a limit-th of the way
+                limit = Math.max(minLimit, Math.min(maxLimit, limit + (newLimit - limit) / limit));
+                break;
+        }
+    }
+
+    private static boolean isDrop(PendingRequest<?> request) {
+        final int code = request.getLastStatusCode();
+        return code == RATE_LIMIT_CODE || code >= 500 || failedWithIOException(request);
+    }
+
+    private static boolean failedWithIOException(PendingRequest<?> request) {
+        if(!request.future.isCompletedExceptionally()) {
+            return false;
+        }
+        try {
+            request.future.join();
+            return false;
+        } catch(CompletionException e) {
+            Throwable cause = e.getCause();
+            while(cause != null) {
+                if(cause instanceof IOException) return true;
+                cause = cause.getCause();
+            }
+            return false;
+        } catch(RuntimeException e) {
+            // cancelled
+            return false;
+        }
+    }
+
+    public static class Factory extends RateLimiterFactory {
+        private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Reliqua adaptive limiter");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Reliqua adaptive limiter scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        private final Algorithm algorithm;
+        private final int initialLimit;
+        private final int minLimit;
+        private final int maxLimit;
+        private final RateLimitHeaders headers;
+        private final QueueSettings queueSettings;
+
+        public Factory(@Nonnull Algorithm algorithm, int initialLimit, int minLimit, int maxLimit, @Nonnull RateLimitHeaders headers,
+                       @Nonnull QueueSettings queueSettings) {
+            this.algorithm = Objects.requireNonNull(algorithm, "Algorithm may not be null");
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.headers = Objects.requireNonNull(headers, "Headers may not be null");
+            this.queueSettings = Objects.requireNonNull(queueSettings, "Queue settings may not be null");
+        }
+
+        public Factory(@Nonnull Algorithm algorithm, int initialLimit, int minLimit, int maxLimit, @Nonnull RateLimitHeaders headers) {
+            this(algorithm, initialLimit, minLimit, maxLimit, headers, new QueueSettings());
+        }
+
+        /**
+         * Creates a factory whose limiters start at 4 requests in flight and stay between 1 and 200.
+         *
+         * @param algorithm How the limit is adjusted.
+         */
+        public Factory(@Nonnull Algorithm algorithm) {
+            this(algorithm, 4, 1, 200, RateLimitHeaders.DEFAULT);
+        }
+
+        @Override
+        protected RateLimiter createRateLimiter(String key) {
+            return new AdaptiveRateLimiter(executor, scheduler, algorithm, initialLimit, minLimit, maxLimit, headers, queueSettings);
+        }
+
+        @Override
+        public void shutdownAllRateLimiters() throws Exception {
+            super.shutdownAllRateLimiters();
+            executor.shutdown();
+            scheduler.shutdown();
+        }
+    }
+}
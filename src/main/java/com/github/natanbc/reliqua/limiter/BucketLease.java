@@ -0,0 +1,51 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+/**
+ * Result of {@link BucketStore#acquire(String, int, long, LimiterState, long) taking requests} from a bucket store:
+ * how many requests were taken, and the state the bucket was left in.
+ */
+public class BucketLease {
+    private final int taken;
+    private final LimiterState state;
+
+    /**
+     * Creates a new lease.
+     *
+     * @param taken How many requests were taken, possibly 0.
+     * @param state State of the bucket after taking them.
+     */
+    public BucketLease(int taken, @Nonnull LimiterState state) {
+        this.taken = taken;
+        this.state = Objects.requireNonNull(state, "State may not be null");
+    }
+
+    /**
+     * Returns how many requests were taken from the bucket.
+     *
+     * @return The requests taken, possibly 0.
+     */
+    @CheckReturnValue
+    public int getTaken() {
+        return taken;
+    }
+
+    /**
+     * Returns the state of the bucket after the requests were taken.
+     *
+     * @return The bucket state.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public LimiterState getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return "BucketLease(taken=" + taken + ", state=" + state + ")";
+    }
+}
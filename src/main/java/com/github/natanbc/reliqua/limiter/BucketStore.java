@@ -0,0 +1,70 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+
+/**
+ * Storage for rate limit buckets which lives outside of a single {@link RateLimiter}, letting several limiters, in
+ * the same process or not, share and respect the same budget.
+ *
+ * <br>Implementations must apply each operation atomically with respect to every other user of the store. Stores
+ * shared between hosts compare reset times from different clocks, so those clocks should be kept in sync.
+ *
+ * @see StoredRateLimiter
+ */
+public interface BucketStore extends Closeable {
+    /**
+     * Takes up to {@code permits} requests from a bucket. If the bucket's window has already reset, the remaining
+     * requests are refilled to its limit before taking them.
+     *
+     * <br>Values reported by the server since the last call can be passed along, and are applied first as if by
+     * {@link #update(String, int, int, long, long) update}, so a lease only takes a single round trip to the store.
+     *
+     * @param key Key identifying the bucket.
+     * @param permits Maximum number of requests to take.
+     * @param now Current epoch millisecond.
+     * @param reported Values reported by the server which weren't written yet, or null.
+     * @param reportedAt Epoch millisecond at which the reported values were received. Ignored if there are none.
+     *
+     * @return How many requests were taken, possibly 0, and the state the bucket was left in.
+     */
+    @Nonnull
+    @CheckReturnValue
+    BucketLease acquire(@Nonnull String key, int permits, long now, @Nullable LimiterState reported, long reportedAt);
+
+    /**
+     * Returns requests taken by {@link #acquire(String, int, long, LimiterState, long)} which weren't used. Requests returned after the
+     * window they were taken in has reset are discarded.
+     *
+     * @param key Key identifying the bucket.
+     * @param permits Number of unused requests.
+     * @param now Current epoch millisecond.
+     */
+    default void release(@Nonnull String key, int permits, long now) {}
+
+    /**
+     * Updates a bucket with the values reported by the server. While the stored window hasn't reset, the remaining
+     * requests never go up, so requests taken by other users of the store since the response was generated aren't
+     * handed out again.
+     *
+     * @param key Key identifying the bucket.
+     * @param limit Total requests allowed in a window.
+     * @param remaining Requests left in the current window.
+     * @param resetTime Epoch millisecond at which the window resets.
+     * @param now Current epoch millisecond.
+     */
+    void update(@Nonnull String key, int limit, int remaining, long resetTime, long now);
+
+    /**
+     * Returns the current state of a bucket.
+     *
+     * @param key Key identifying the bucket.
+     *
+     * @return The bucket state.
+     */
+    @Nonnull
+    @CheckReturnValue
+    LimiterState getState(@Nonnull String key);
+}
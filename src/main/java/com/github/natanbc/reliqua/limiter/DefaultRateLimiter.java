@@ -2,45 +2,113 @@ package com.github.natanbc.reliqua.limiter;
 
 import com.github.natanbc.reliqua.Reliqua;
 import com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory;
+import com.github.natanbc.reliqua.request.RequestException;
+import com.github.natanbc.reliqua.request.RequestRejectedException;
+import com.github.natanbc.reliqua.request.ShutdownException;
 import okhttp3.Response;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 public class DefaultRateLimiter extends RateLimiter {
+    /**
+     * Limit assumed after a 429 that doesn't say what the limit is.
+     */
+    public static final int FALLBACK_LIMIT = 5;
+
     public long resetTime;
     public int remainingUses;
     public int limit = Integer.MAX_VALUE;
 
     protected final Reliqua api;
-    protected final BlockingQueue<LimiterPair> pendingRequests = new LinkedBlockingQueue<>();
+    protected final RequestQueue pendingRequests;
     protected final ScheduledExecutorService executor;
+    protected final RateLimitHeaders headers;
     protected boolean isQueued = false;
 
+    private static final long MIN_BACKOFF_MILLIS = 1;
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Object drainLock = new Object();
+    // set by failQueued, requests aren't sent anymore once it is
+    private volatile Supplier<? extends RequestException> failure;
+    private volatile LimiterPair running;
+    // thread running drainQueue, requests it queues can't wait for room since it's the one making it
+    private volatile Thread drainThread;
+
+    private final RateLimitHeaders.Values headerValues = new RateLimitHeaders.Values();
+
     /**
      * Creates a new rate limiter.
      *
      * @param api The current api instance
      * @param executor The executor to schedule cooldowns and rate limit processing.
+     * @param headers The headers the API uses to report rate limits.
+     * @param queueSettings Bounds of the queue of requests waiting for this limiter.
      */
-    public DefaultRateLimiter(Reliqua api, ScheduledExecutorService executor) {
+    public DefaultRateLimiter(Reliqua api, ScheduledExecutorService executor, @Nonnull RateLimitHeaders headers, @Nonnull QueueSettings queueSettings) {
         this.api = api;
         this.executor = executor;
+        this.headers = Objects.requireNonNull(headers, "Headers may not be null");
+        this.pendingRequests = Objects.requireNonNull(queueSettings, "Queue settings may not be null").createQueue();
+    }
+
+    /**
+     * Creates a new rate limiter with an unbounded queue.
+     *
+     * @param api The current api instance
+     * @param executor The executor to schedule cooldowns and rate limit processing.
+     * @param headers The headers the API uses to report rate limits.
+     */
+    public DefaultRateLimiter(Reliqua api, ScheduledExecutorService executor, @Nonnull RateLimitHeaders headers) {
+        this(api, executor, headers, new QueueSettings());
+    }
+
+    /**
+     * Creates a new rate limiter reading the {@link RateLimitHeaders#DEFAULT default} headers.
+     *
+     * @param api The current api instance
+     * @param executor The executor to schedule cooldowns and rate limit processing.
+     */
+    public DefaultRateLimiter(Reliqua api, ScheduledExecutorService executor) {
+        this(api, executor, RateLimitHeaders.DEFAULT);
+    }
+
+    public DefaultRateLimiter(Reliqua api, String key, @Nonnull RateLimitHeaders headers, @Nonnull QueueSettings queueSettings) {
+        this(api, Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "Reliqua ratelimiter: " + key)), headers, queueSettings);
+    }
+
+    public DefaultRateLimiter(Reliqua api, String key, @Nonnull RateLimitHeaders headers) {
+        this(api, key, headers, new QueueSettings());
     }
 
     public DefaultRateLimiter(Reliqua api, String key) {
-        this(api, Executors.newSingleThreadScheduledExecutor((r) -> new Thread(r, "Reliqua ratelimiter: " + key)));
+        this(api, key, RateLimitHeaders.DEFAULT);
     }
 
     @Override
     public void queue(@Nonnull LimiterPair task) {
+        if (!pendingRequests.enqueue(task, Thread.currentThread() != drainThread)) {
+            task.getRequest().future.completeExceptionally(new RequestRejectedException("Rate limiter queue is full"));
+            return;
+        }
+
         final boolean wasQueued = isQueued;
         isQueued = true;
 
-        pendingRequests.add(task);
-
         if (!wasQueued) {
-            backoffQueue();
+            scheduleDrain(retryAfter());
+        }
+
+        // queued after failQueued emptied the queue, nothing will send it anymore
+        final Supplier<? extends RequestException> error = failure;
+        if (error != null && pendingRequests.remove(task)) {
+            task.getRequest().future.completeExceptionally(error.get());
         }
     }
 
@@ -60,15 +128,56 @@ public class DefaultRateLimiter extends RateLimiter {
 
     @Override
     public void backoffQueue() {
-        final long delay = retryAfter();
-        executor.schedule(this::drainQueue, delay, TimeUnit.MILLISECONDS);
+        // a request was just refused, so wait at least a little even if the bucket
+        // claims to be reset already (eg a limit of 0), instead of spinning
+        scheduleDrain(Math.max(MIN_BACKOFF_MILLIS, retryAfter()));
     }
 
-    protected synchronized void drainQueue() {
+    private void scheduleDrain(long delay) {
+        // a single drain is scheduled at a time, requests hitting the rate limit
+        // while a drain is pending just wait for it
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.schedule(this::drainQueue, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the limiter was shut down, eg by a request racing Reliqua#shutdown
+            drainScheduled.set(false);
+            failQueued(() -> new ShutdownException("Rate limiter was shut down"));
+        }
+    }
+
+    protected void drainQueue() {
+        // not synchronized on this, so reading the bucket state doesn't wait for the request being sent
+        synchronized (drainLock) {
+            drainThread = Thread.currentThread();
+            try {
+                drain();
+            } finally {
+                drainThread = null;
+            }
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
         boolean graceful = true;
-        while (!pendingRequests.isEmpty()) {
+        while (failure == null && !pendingRequests.isEmpty()) {
             final LimiterPair r = pendingRequests.peek();
-            graceful = handle(r);
+            if (r == null) {
+                // dropped to make room for another request
+                break;
+            }
+            try {
+                graceful = handle(r);
+            } catch (RuntimeException e) {
+                // eg a bucket store which failed, thrown out of here it would leave the queue
+                // marked as draining with no drain scheduled, hanging every request after it
+                pendingRequests.remove(r);
+                r.getRequest().future.completeExceptionally(new RequestException(e));
+                continue;
+            }
 
             if (!graceful) {
                 break;
@@ -77,7 +186,9 @@ public class DefaultRateLimiter extends RateLimiter {
 
         isQueued = !graceful;
 
-        if (this.api.isShutdown() && graceful) {
+        if (!graceful) {
+            backoffQueue();
+        } else if (this.api.isShutdown()) {
             executor.shutdown();
         }
     }
@@ -89,6 +200,47 @@ public class DefaultRateLimiter extends RateLimiter {
         }
     }
 
+    @Override
+    public synchronized boolean tryAcquire() {
+        if (isRateLimit()) {
+            return false;
+        }
+        // the bucket is only updated by responses, so the request in flight isn't counted yet
+        if (remainingUses < 2) {
+            return false;
+        }
+        remainingUses--;
+        return true;
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        // a handled request stays at the head until the next drain when it used up the bucket
+        int queued = 0;
+        for (final LimiterPair pair : this.pendingRequests) {
+            if (!pair.getRequest().isHandled()) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    @Override
+    public int failQueued(@Nonnull Supplier<? extends RequestException> error) {
+        failure = Objects.requireNonNull(error, "Error may not be null");
+        final List<LimiterPair> left = new ArrayList<>();
+        pendingRequests.drainTo(left);
+        // the request being sent is left to finish, run fails it if it doesn't complete
+        final LimiterPair current = running;
+        int failed = 0;
+        for (final LimiterPair pair : left) {
+            if (pair != current && !pair.getRequest().isHandled() && pair.getRequest().future.completeExceptionally(error.get())) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
     @Override
     public int getRemainingRequests() {
         return this.remainingUses;
@@ -99,56 +251,101 @@ public class DefaultRateLimiter extends RateLimiter {
         return this.resetTime;
     }
 
+    @Override
+    public synchronized LimiterState getState() {
+        return new LimiterState(limit, remainingUses, resetTime);
+    }
+
+    @Override
+    public synchronized void restoreState(@Nonnull LimiterState state) {
+        limit = state.getLimit();
+        remainingUses = state.getRemaining();
+        resetTime = state.getResetTime();
+    }
+
     protected boolean handle(LimiterPair pair) {
-        if (pair.getRequest().future.isDone()) {
-            pendingRequests.poll();
+        if (pair.getRequest().isHandled()) {
+            // not poll, the pair may have been dropped from the queue already
+            pendingRequests.remove(pair);
             return true;
         }
 
-        pair.getRunnable().run();
+        run(pair);
 
         return !this.isRateLimit();
     }
 
-    private synchronized void handleRatelimit(Response response, long current) {
-        final String retryAfter = response.header("Retry-After");
-        final String limitHeader = response.header("X-RateLimit-Limit", "5");
+    /**
+     * Sends a request, unless {@link #failQueued(Supplier)} was called. Requests which aren't handled afterwards, such
+     * as ones which got a 429, are failed if it was called meanwhile, since they won't be retried.
+     *
+     * @param pair The request to send.
+     */
+    protected void run(LimiterPair pair) {
+        running = pair;
+        try {
+            if (failure == null) {
+                pair.getRunnable().run();
+            }
+        } finally {
+            running = null;
+        }
+        final Supplier<? extends RequestException> error = failure;
+        if (error != null && !pair.getRequest().isHandled()) {
+            pendingRequests.remove(pair);
+            pair.getRequest().future.completeExceptionally(error.get());
+        }
+    }
+
+    private synchronized void handleRatelimit(long current) {
+        final long retryAfter = headerValues.getRetryAfter();
+        final long limitHeader = headerValues.getLimit();
         long delay;
 
-        if (retryAfter == null) { // this should never happen
+        if (retryAfter == RateLimitHeaders.Values.MISSING) { // this should never happen
             delay = 30000; // 30 seconds as fallback
         } else {
-            delay = Long.parseLong(retryAfter) * 1000;
+            delay = retryAfter * 1000;
         }
 
         // LOG.error("Encountered 429, retrying after {} ms", delay);
-        resetTime = current + delay;
-        remainingUses = 0;
-        //noinspection ConstantConditions
-        limit = Integer.parseInt(limitHeader);
+        updateBucket(limitHeader == RateLimitHeaders.Values.MISSING ? FALLBACK_LIMIT : clamp(limitHeader), 0, current + delay, current);
     }
 
     private synchronized void update0(Response response) {
         final long current = System.currentTimeMillis();
         final boolean is429 = response.code() == RATE_LIMIT_CODE;
-        final String remainingHeader = response.header("X-RateLimit-Remaining");
-        final String limitHeader = response.header("X-RateLimit-Limit");
-        final String resetHeader = response.header("X-RateLimit-Reset-After");
+        headers.extract(response.headers(), headerValues);
 
         if (is429) {
-            handleRatelimit(response, current);
+            handleRatelimit(current);
             return;
             // TODO: add logging?
-        } else if (remainingHeader == null || limitHeader == null || resetHeader == null) {
+        } else if (!headerValues.hasBucketInfo()) {
             // LOG.debug("Failed to update buckets due to missing headers in response with code: {} and headers: \n{}", response.code(), response.headers());
             return;
         }
 
-        remainingUses = Integer.parseInt(remainingHeader);
-        limit = Integer.parseInt(limitHeader);
-        final long reset = (long) Math.ceil(Double.parseDouble(resetHeader)); // relative seconds
-        final long delay = reset * 1000;
-        resetTime = current + delay;
+        final long delay = headerValues.getResetAfter() * 1000; // relative seconds, rounded up
+        updateBucket(clamp(headerValues.getLimit()), clamp(headerValues.getRemaining()), current + delay, current);
+    }
+
+    /**
+     * Stores the bucket values read from a response.
+     *
+     * @param limit Total requests allowed in a window.
+     * @param remaining Requests left in the current window.
+     * @param resetTime Epoch millisecond at which the window resets.
+     * @param now Epoch millisecond at which the response was handled.
+     */
+    protected synchronized void updateBucket(int limit, int remaining, long resetTime, long now) {
+        this.limit = limit;
+        this.remainingUses = remaining;
+        this.resetTime = resetTime;
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.min(value, Integer.MAX_VALUE);
     }
 
     @Override
@@ -158,14 +355,26 @@ public class DefaultRateLimiter extends RateLimiter {
 
     public static class Factory extends RateLimiterFactory {
         private final Reliqua api;
+        private final RateLimitHeaders headers;
+        private final QueueSettings queueSettings;
 
-        public Factory(Reliqua api) {
+        public Factory(Reliqua api, @Nonnull RateLimitHeaders headers, @Nonnull QueueSettings queueSettings) {
             this.api = api;
+            this.headers = Objects.requireNonNull(headers, "Headers may not be null");
+            this.queueSettings = Objects.requireNonNull(queueSettings, "Queue settings may not be null");
+        }
+
+        public Factory(Reliqua api, @Nonnull RateLimitHeaders headers) {
+            this(api, headers, new QueueSettings());
+        }
+
+        public Factory(Reliqua api) {
+            this(api, RateLimitHeaders.DEFAULT);
         }
 
         @Override
         protected RateLimiter createRateLimiter(String key) {
-            return new DefaultRateLimiter(api, key);
+            return new DefaultRateLimiter(api, key, headers, queueSettings);
         }
     }
 }
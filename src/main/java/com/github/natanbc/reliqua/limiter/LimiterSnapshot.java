@@ -0,0 +1,94 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The states of all rate limiters of a factory, keyed by rate limiter key, which can be written to a stream and read
+ * back after a restart.
+ *
+ * @see com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory#snapshot()
+ * @see com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory#restore(LimiterSnapshot)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LimiterSnapshot {
+    private static final int MAGIC = 0x524C5153; // "RLQS"
+    private static final int VERSION = 1;
+
+    private final Map<String, LimiterState> states;
+
+    public LimiterSnapshot(@Nonnull Map<String, LimiterState> states) {
+        this.states = Collections.unmodifiableMap(new HashMap<>(Objects.requireNonNull(states, "States may not be null")));
+    }
+
+    /**
+     * Returns the saved states, keyed by rate limiter key.
+     *
+     * @return The saved states.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public Map<String, LimiterState> getStates() {
+        return states;
+    }
+
+    /**
+     * Writes this snapshot to the given stream. The stream is not closed.
+     *
+     * @param out Stream to write to.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void write(@Nonnull OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(states.size());
+        for(Map.Entry<String, LimiterState> entry : states.entrySet()) {
+            LimiterState state = entry.getValue();
+            data.writeUTF(entry.getKey());
+            data.writeInt(state.getLimit());
+            data.writeInt(state.getRemaining());
+            data.writeLong(state.getResetTime());
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(OutputStream)}. The stream is not closed.
+     *
+     * @param in Stream to read from.
+     *
+     * @return The snapshot read.
+     *
+     * @throws IOException If reading fails or the stream doesn't contain a snapshot.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static LimiterSnapshot read(@Nonnull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != MAGIC) {
+            throw new IOException("Not a limiter snapshot");
+        }
+        int version = data.readInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported limiter snapshot version " + version);
+        }
+        int size = data.readInt();
+        Map<String, LimiterState> states = new HashMap<>();
+        for(int i = 0; i < size; i++) {
+            String key = data.readUTF();
+            states.put(key, new LimiterState(data.readInt(), data.readInt(), data.readLong()));
+        }
+        return new LimiterSnapshot(states);
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+
+/**
+ * Immutable copy of the state of a rate limiter bucket, used to carry it over to another rate limiter.
+ */
+public class LimiterState {
+    private final int limit;
+    private final int remaining;
+    private final long resetTime;
+
+    /**
+     * Creates a new state.
+     *
+     * @param limit Total requests allowed in a window.
+     * @param remaining Requests left in the current window.
+     * @param resetTime Epoch millisecond at which the current window resets.
+     */
+    public LimiterState(int limit, int remaining, long resetTime) {
+        this.limit = limit;
+        this.remaining = remaining;
+        this.resetTime = resetTime;
+    }
+
+    /**
+     * Returns the total number of requests allowed in a window.
+     *
+     * @return The request limit.
+     */
+    @CheckReturnValue
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the number of requests left in the window.
+     *
+     * @return The remaining requests.
+     */
+    @CheckReturnValue
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Returns the epoch millisecond at which the window resets.
+     *
+     * @return The reset time.
+     */
+    @CheckReturnValue
+    public long getResetTime() {
+        return resetTime;
+    }
+
+    @Override
+    public String toString() {
+        return "LimiterState(limit=" + limit + ", remaining=" + remaining + ", resetTime=" + resetTime + ")";
+    }
+}
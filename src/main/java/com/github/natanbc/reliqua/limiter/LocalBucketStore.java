@@ -0,0 +1,93 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bucket store kept in memory, sharing buckets between every limiter of this process which uses it.
+ *
+ * <br>This is the reference implementation of the {@link BucketStore} contract. It's useful for tests of code written
+ * against a networked store and for sharing one budget between several {@link com.github.natanbc.reliqua.Reliqua Reliqua}
+ * instances of a single process.
+ */
+public class LocalBucketStore implements BucketStore {
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    @Nonnull
+    @Override
+    public BucketLease acquire(@Nonnull String key, int permits, long now, @Nullable LimiterState reported, long reportedAt) {
+        final Bucket bucket = bucket(key);
+        synchronized(bucket) {
+            if(reported != null) {
+                bucket.update(reported.getLimit(), reported.getRemaining(), reported.getResetTime(), reportedAt);
+            }
+            if(now >= bucket.resetTime) {
+                // the server reports the new reset time with its next response, until then assume
+                // the new window is as long as the last one
+                bucket.remaining = bucket.limit;
+                bucket.resetTime = now + bucket.window;
+            }
+            final int taken = Math.max(0, Math.min(permits, bucket.remaining));
+            bucket.remaining -= taken;
+            return new BucketLease(taken, new LimiterState(bucket.limit, bucket.remaining, bucket.resetTime));
+        }
+    }
+
+    @Override
+    public void release(@Nonnull String key, int permits, long now) {
+        final Bucket bucket = bucket(key);
+        synchronized(bucket) {
+            if(now < bucket.resetTime) {
+                bucket.remaining = (int) Math.min((long) bucket.remaining + permits, bucket.limit);
+            }
+        }
+    }
+
+    @Override
+    public void update(@Nonnull String key, int limit, int remaining, long resetTime, long now) {
+        final Bucket bucket = bucket(key);
+        synchronized(bucket) {
+            bucket.update(limit, remaining, resetTime, now);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public LimiterState getState(@Nonnull String key) {
+        final Bucket bucket = bucket(key);
+        synchronized(bucket) {
+            return new LimiterState(bucket.limit, bucket.remaining, bucket.resetTime);
+        }
+    }
+
+    @Override
+    public void close() {
+        buckets.clear();
+    }
+
+    private Bucket bucket(String key) {
+        return buckets.computeIfAbsent(key, k -> new Bucket());
+    }
+
+    private static class Bucket {
+        // unknown limits, refilled to the limit on the first acquire
+        int limit = Integer.MAX_VALUE;
+        int remaining;
+        long resetTime;
+        long window;
+
+        void update(int limit, int remaining, long resetTime, long now) {
+            if(now < this.resetTime) {
+                remaining = Math.min(remaining, this.remaining);
+                resetTime = Math.max(resetTime, this.resetTime);
+            } else {
+                window = Math.max(0, resetTime - now);
+            }
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetTime = resetTime;
+        }
+    }
+}
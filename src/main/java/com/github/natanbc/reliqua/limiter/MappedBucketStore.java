@@ -0,0 +1,259 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * Bucket store kept in a memory mapped file. Every process on a host which opens the same file shares the same
+ * buckets, and the state survives restarts and crashes.
+ *
+ * <br>The file holds a fixed number of slots, chosen when it's created. Each update locks the slot's region of the
+ * file, so updates are atomic across processes. Only one store per file should be opened in each process.
+ *
+ * <br>When every slot is taken, slots of buckets whose window already reset are reused. Limiters are keyed by request
+ * URL unless {@link com.github.natanbc.reliqua.util.PendingRequestBuilder#setRateLimiter(RateLimiter) given one}, so
+ * APIs with ids in their paths should key limiters by route template (eg {@code /users/{id}}) instead, or the store
+ * fills with one bucket per id.
+ */
+// the file locks are only held for the try blocks, they're never used inside them
+@SuppressWarnings({"unused", "WeakerAccess", "try"})
+public class MappedBucketStore implements BucketStore {
+    private static final int MAGIC = 0x524C5142; // "RLQB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    // slot layout
+    private static final int HASH_OFFSET = 0;
+    private static final int LIMIT_OFFSET = 8;
+    private static final int REMAINING_OFFSET = 12;
+    private static final int RESET_OFFSET = 16;
+    private static final int WINDOW_OFFSET = 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final Map<String, Integer> slotCache;
+
+    /**
+     * Opens the store in the given file, creating it with room for the given number of buckets if it doesn't exist.
+     *
+     * @param path The file holding the buckets.
+     * @param slots How many buckets the file can hold, if it's created. Ignored for existing files.
+     *
+     * @throws IOException If the file can't be opened or isn't a bucket store.
+     */
+    public MappedBucketStore(@Nonnull Path path, int slots) throws IOException {
+        Objects.requireNonNull(path, "Path may not be null");
+        if(slots < 1) {
+            throw new IllegalArgumentException("Slots must be positive");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            try(FileLock ignored = channel.lock()) {
+                if(channel.size() < HEADER_SIZE) {
+                    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+                    header.putInt(0, MAGIC);
+                    header.putInt(4, VERSION);
+                    header.putInt(8, slots);
+                    header.force();
+                } else {
+                    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                    if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                        throw new IOException("Not a bucket store: " + path);
+                    }
+                    slots = header.getInt(8);
+                }
+            }
+            this.slots = slots;
+            final int maxCached = slots;
+            this.slotCache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > maxCached;
+                }
+            };
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store in the given file, creating it with room for 1024 buckets if it doesn't exist.
+     *
+     * @param path The file holding the buckets.
+     *
+     * @throws IOException If the file can't be opened or isn't a bucket store.
+     */
+    public MappedBucketStore(@Nonnull Path path) throws IOException {
+        this(path, 1024);
+    }
+
+    @CheckReturnValue
+    public int getSlots() {
+        return slots;
+    }
+
+    @Nonnull
+    @Override
+    public synchronized BucketLease acquire(@Nonnull String key, int permits, long now, @Nullable LimiterState reported, long reportedAt) {
+        return withSlot(key, now, offset -> {
+            if(reported != null) {
+                update(offset, reported.getLimit(), reported.getRemaining(), reported.getResetTime(), reportedAt);
+            }
+            int remaining = buffer.getInt(offset + REMAINING_OFFSET);
+            if(now >= buffer.getLong(offset + RESET_OFFSET)) {
+                // the server reports the new reset time with its next response, until then assume
+                // the new window is as long as the last one
+                remaining = buffer.getInt(offset + LIMIT_OFFSET);
+                buffer.putLong(offset + RESET_OFFSET, now + buffer.getLong(offset + WINDOW_OFFSET));
+            }
+            final int taken = Math.max(0, Math.min(permits, remaining));
+            buffer.putInt(offset + REMAINING_OFFSET, remaining - taken);
+            return new BucketLease(taken, state(offset));
+        });
+    }
+
+    @Override
+    public synchronized void release(@Nonnull String key, int permits, long now) {
+        withSlot(key, now, offset -> {
+            if(now < buffer.getLong(offset + RESET_OFFSET)) {
+                final long remaining = (long) buffer.getInt(offset + REMAINING_OFFSET) + permits;
+                buffer.putInt(offset + REMAINING_OFFSET, (int) Math.min(remaining, buffer.getInt(offset + LIMIT_OFFSET)));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public synchronized void update(@Nonnull String key, int limit, int remaining, long resetTime, long now) {
+        withSlot(key, now, offset -> {
+            update(offset, limit, remaining, resetTime, now);
+            return null;
+        });
+    }
+
+    @Nonnull
+    @Override
+    public synchronized LimiterState getState(@Nonnull String key) {
+        return withSlot(key, System.currentTimeMillis(), this::state);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Runs an operation on the slot of a key, holding the slot's lock. A key without a slot claims a free one, or if
+     * there are none, one whose window already reset, which loses nothing but the limits learned for its old key.
+     */
+    private <T> T withSlot(String key, long now, IntFunction<T> operation) {
+        final long hash = hash(key);
+        try {
+            final Integer cached = slotCache.get(key);
+            if(cached != null) {
+                try(FileLock ignored = channel.lock(cached, SLOT_SIZE, false)) {
+                    if(buffer.getLong(cached + HASH_OFFSET) == hash) {
+                        return operation.apply(cached);
+                    }
+                }
+                // reused by another process for a different key
+                slotCache.remove(key);
+            }
+
+            final int start = (int) Long.remainderUnsigned(hash, slots);
+            while(true) {
+                int expired = -1;
+                for(int i = 0; i < slots; i++) {
+                    final int offset = HEADER_SIZE + ((start + i) % slots) * SLOT_SIZE;
+                    // another process may be claiming the slot, so the hash is only read holding the lock
+                    try(FileLock ignored = channel.lock(offset, SLOT_SIZE, false)) {
+                        final long slotHash = buffer.getLong(offset + HASH_OFFSET);
+                        if(slotHash == hash) {
+                            slotCache.put(key, offset);
+                            return operation.apply(offset);
+                        }
+                        if(slotHash == 0) {
+                            // the end of the probe sequence, so the key has no slot
+                            claim(offset, hash);
+                            slotCache.put(key, offset);
+                            return operation.apply(offset);
+                        }
+                        if(expired == -1 && now >= buffer.getLong(offset + RESET_OFFSET)) {
+                            expired = offset;
+                        }
+                    }
+                }
+                if(expired == -1) {
+                    throw new IllegalStateException("Bucket store is full (" + slots + " slots)");
+                }
+                try(FileLock ignored = channel.lock(expired, SLOT_SIZE, false)) {
+                    // check it wasn't used again since it was seen
+                    if(now >= buffer.getLong(expired + RESET_OFFSET)) {
+                        claim(expired, hash);
+                        slotCache.put(key, expired);
+                        return operation.apply(expired);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void update(int offset, int limit, int remaining, long resetTime, long now) {
+        final long storedReset = buffer.getLong(offset + RESET_OFFSET);
+        if(now < storedReset) {
+            remaining = Math.min(remaining, buffer.getInt(offset + REMAINING_OFFSET));
+            resetTime = Math.max(resetTime, storedReset);
+        } else {
+            buffer.putLong(offset + WINDOW_OFFSET, Math.max(0, resetTime - now));
+        }
+        buffer.putInt(offset + LIMIT_OFFSET, limit);
+        buffer.putInt(offset + REMAINING_OFFSET, remaining);
+        buffer.putLong(offset + RESET_OFFSET, resetTime);
+    }
+
+    private LimiterState state(int offset) {
+        return new LimiterState(
+                buffer.getInt(offset + LIMIT_OFFSET),
+                buffer.getInt(offset + REMAINING_OFFSET),
+                buffer.getLong(offset + RESET_OFFSET)
+        );
+    }
+
+    private void claim(int offset, long hash) {
+        // unknown limits, refilled to the limit on the first acquire
+        buffer.putInt(offset + LIMIT_OFFSET, Integer.MAX_VALUE);
+        buffer.putInt(offset + REMAINING_OFFSET, 0);
+        buffer.putLong(offset + RESET_OFFSET, 0);
+        buffer.putLong(offset + WINDOW_OFFSET, 0);
+        buffer.putLong(offset + HASH_OFFSET, hash);
+    }
+
+    // 64 bit FNV-1a of the UTF-8 key, never 0 since that marks free slots
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.natanbc.reliqua.limiter;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds of the queues holding requests waiting for their rate limiter, and what happens to requests once a queue is
+ * full. Requests which don't fit complete with a {@link com.github.natanbc.reliqua.request.RequestRejectedException
+ * RequestRejectedException}.
+ *
+ * <br>Every queue created from the same settings shares the {@link #setGlobalCapacity(int) global capacity}, so it
+ * bounds the requests waiting across every bucket of a factory. By default queues are unbounded.
+ *
+ * <br>Requests {@link com.github.natanbc.reliqua.util.PendingRequestBuilder#setTenant(String) tagged with a tenant}
+ * are scheduled fairly between tenants, weighted as configured here.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class QueueSettings {
+    /**
+     * What to do with a request added to a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Reject the new request.
+         */
+        REJECT_NEW,
+        /**
+         * Drop the request which has been waiting the longest.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the oldest of the lowest priority requests, if its priority is lower than the new request's. Otherwise
+         * the new request is rejected.
+         *
+         * @see com.github.natanbc.reliqua.util.PendingRequestBuilder#setPriority(int)
+         */
+        DROP_LOWEST_PRIORITY,
+        /**
+         * Block the caller until there's room, rejecting the request if the {@link #setBlockTimeout(long, TimeUnit)
+         * block timeout} elapses first.
+         *
+         * <br>Requests added by a rate limiter's own thread, such as follow-up requests sent from the callback of a
+         * request on the same bucket, are rejected right away instead, since that thread is the one making room.
+         * Callbacks also run on mapper threads and on other limiters' threads, which this policy does block, so
+         * callbacks chaining requests onto full queues should avoid this policy or hand the request to another thread.
+         */
+        BLOCK
+    }
+
+    private int capacity = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT_NEW;
+    private long blockTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+    private Semaphore globalPermits;
+    private int globalCapacity = Integer.MAX_VALUE;
+    private final Map<String, Integer> tenantWeights = new ConcurrentHashMap<>();
+
+    /**
+     * Sets how many requests may wait in a single bucket's queue. Defaults to unbounded.
+     *
+     * @param capacity Maximum queued requests per bucket.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public QueueSettings setCapacity(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * Sets how many requests may wait in all queues created from these settings combined. Defaults to unbounded.
+     *
+     * @param globalCapacity Maximum queued requests across every bucket.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public synchronized QueueSettings setGlobalCapacity(int globalCapacity) {
+        if(globalCapacity < 1) {
+            throw new IllegalArgumentException("Global capacity must be positive");
+        }
+        if(globalPermits != null) {
+            throw new IllegalStateException("Global capacity can't be changed after queues were created");
+        }
+        this.globalCapacity = globalCapacity;
+        return this;
+    }
+
+    /**
+     * Sets the share of each bucket a tenant gets while other tenants are waiting too. A tenant with weight 2 sends
+     * two requests for every request of a tenant with weight 1. Tenants default to a weight of 1.
+     *
+     * @param tenant The tenant.
+     * @param weight The tenant's weight.
+     *
+     * @return This object.
+     *
+     * @see com.github.natanbc.reliqua.util.PendingRequestBuilder#setTenant(String)
+     */
+    @Nonnull
+    public QueueSettings setTenantWeight(@Nonnull String tenant, int weight) {
+        Objects.requireNonNull(tenant, "Tenant may not be null");
+        if(weight < 1) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+        tenantWeights.put(tenant, weight);
+        return this;
+    }
+
+    /**
+     * Sets what happens to requests added to a full queue. Defaults to {@link OverflowPolicy#REJECT_NEW REJECT_NEW}.
+     *
+     * @param overflowPolicy The overflow policy.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public QueueSettings setOverflowPolicy(@Nonnull OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "Overflow policy may not be null");
+        return this;
+    }
+
+    /**
+     * Sets how long callers wait for room with the {@link OverflowPolicy#BLOCK BLOCK} policy. Defaults to 10 seconds.
+     *
+     * @param timeout Maximum time to block.
+     * @param unit Unit of the timeout.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public QueueSettings setBlockTimeout(long timeout, @Nonnull TimeUnit unit) {
+        if(timeout < 0) {
+            throw new IllegalArgumentException("Timeout may not be negative");
+        }
+        this.blockTimeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    @CheckReturnValue
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @CheckReturnValue
+    public int getGlobalCapacity() {
+        return globalCapacity;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @CheckReturnValue
+    public long getBlockTimeout(@Nonnull TimeUnit unit) {
+        return unit.convert(blockTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a queue with these settings.
+     *
+     * @return A new request queue.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public RequestQueue createQueue() {
+        return new RequestQueue(capacity, overflowPolicy, blockTimeoutNanos, globalPermits(), tenantWeights);
+    }
+
+    private synchronized Semaphore globalPermits() {
+        if(globalCapacity == Integer.MAX_VALUE) {
+            return null;
+        }
+        if(globalPermits == null) {
+            globalPermits = new Semaphore(globalCapacity);
+        }
+        return globalPermits;
+    }
+}
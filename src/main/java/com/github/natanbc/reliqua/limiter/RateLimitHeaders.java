@@ -0,0 +1,187 @@
+package com.github.natanbc.reliqua.limiter;
+
+import okhttp3.Headers;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+/**
+ * Describes which response headers carry rate limit information and extracts them from a response.
+ *
+ * <br>Extraction walks the headers once and parses the values in place, so updating a bucket allocates nothing.
+ * Headers which are missing or malformed are reported as {@link Values#MISSING}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RateLimitHeaders {
+    /**
+     * The {@code X-RateLimit-*} headers, with the reset given in (possibly fractional) seconds relative to the response.
+     */
+    public static final RateLimitHeaders DEFAULT = new RateLimitHeaders(
+            "X-RateLimit-Limit", "X-RateLimit-Remaining", "X-RateLimit-Reset-After", "Retry-After"
+    );
+
+    /**
+     * The {@code RateLimit-*} headers from the IETF draft, with the reset given in seconds relative to the response.
+     */
+    public static final RateLimitHeaders IETF = new RateLimitHeaders(
+            "RateLimit-Limit", "RateLimit-Remaining", "RateLimit-Reset", "Retry-After"
+    );
+
+    private final String limitHeader;
+    private final String remainingHeader;
+    private final String resetAfterHeader;
+    private final String retryAfterHeader;
+    // bit n is set if one of the names has length n, lets most unrelated headers be skipped without a comparison
+    private final long nameLengths;
+
+    /**
+     * Creates a new header schema. Header names are matched case insensitively.
+     *
+     * @param limitHeader Header with the total number of requests allowed in a window.
+     * @param remainingHeader Header with the number of requests left in the current window.
+     * @param resetAfterHeader Header with the seconds until the current window resets.
+     * @param retryAfterHeader Header with the seconds to wait after a 429.
+     */
+    public RateLimitHeaders(@Nonnull String limitHeader, @Nonnull String remainingHeader,
+                            @Nonnull String resetAfterHeader, @Nonnull String retryAfterHeader) {
+        this.limitHeader = Objects.requireNonNull(limitHeader, "Limit header may not be null");
+        this.remainingHeader = Objects.requireNonNull(remainingHeader, "Remaining header may not be null");
+        this.resetAfterHeader = Objects.requireNonNull(resetAfterHeader, "Reset after header may not be null");
+        this.retryAfterHeader = Objects.requireNonNull(retryAfterHeader, "Retry after header may not be null");
+        this.nameLengths = lengthBit(limitHeader) | lengthBit(remainingHeader)
+                | lengthBit(resetAfterHeader) | lengthBit(retryAfterHeader);
+    }
+
+    /**
+     * Reads the rate limit headers into the given values, replacing whatever they held before.
+     *
+     * @param headers The response headers.
+     * @param values Where to store the parsed values.
+     */
+    public void extract(@Nonnull Headers headers, @Nonnull Values values) {
+        values.clear();
+        for(int i = 0, size = headers.size(); i < size; i++) {
+            final String name = headers.name(i);
+            if((lengthBit(name) & nameLengths) == 0) continue;
+            if(name.equalsIgnoreCase(limitHeader)) {
+                values.limit = parseCeil(headers.value(i));
+            } else if(name.equalsIgnoreCase(remainingHeader)) {
+                values.remaining = parseCeil(headers.value(i));
+            } else if(name.equalsIgnoreCase(resetAfterHeader)) {
+                values.resetAfter = parseCeil(headers.value(i));
+            } else if(name.equalsIgnoreCase(retryAfterHeader)) {
+                values.retryAfter = parseCeil(headers.value(i));
+            }
+        }
+    }
+
+    private static long lengthBit(String name) {
+        // names of 64 characters or more share the last bit
+        return 1L << Math.min(name.length(), 63);
+    }
+
+    /**
+     * Parses a non negative decimal number, rounding any fractional part up.
+     *
+     * @param s The string to parse.
+     *
+     * @return The parsed number, or {@link Values#MISSING} if the string isn't a valid number.
+     */
+    @CheckReturnValue
+    static long parseCeil(String s) {
+        final int length = s.length();
+        int i = 0;
+        long result = 0;
+        for(; i < length; i++) {
+            final char c = s.charAt(i);
+            if(c == '.') break;
+            if(c < '0' || c > '9' || i == 18) return Values.MISSING;
+            result = result * 10 + (c - '0');
+        }
+        if(i == 0) return Values.MISSING;
+        boolean roundUp = false;
+        for(i++; i < length; i++) {
+            final char c = s.charAt(i);
+            if(c < '0' || c > '9') return Values.MISSING;
+            roundUp |= c != '0';
+        }
+        return roundUp ? result + 1 : result;
+    }
+
+    /**
+     * Mutable holder for the values read by {@link #extract(Headers, Values)}, meant to be reused between responses.
+     */
+    public static final class Values {
+        /**
+         * Returned for headers which were missing or couldn't be parsed.
+         */
+        public static final long MISSING = -1;
+
+        private long limit;
+        private long remaining;
+        private long resetAfter;
+        private long retryAfter;
+
+        public Values() {
+            clear();
+        }
+
+        void clear() {
+            limit = MISSING;
+            remaining = MISSING;
+            resetAfter = MISSING;
+            retryAfter = MISSING;
+        }
+
+        /**
+         * Returns the total number of requests allowed in a window.
+         *
+         * @return The request limit, or {@link #MISSING}.
+         */
+        @CheckReturnValue
+        public long getLimit() {
+            return limit;
+        }
+
+        /**
+         * Returns the number of requests left in the current window.
+         *
+         * @return The remaining requests, or {@link #MISSING}.
+         */
+        @CheckReturnValue
+        public long getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * Returns the seconds until the current window resets, rounded up.
+         *
+         * @return The seconds until reset, or {@link #MISSING}.
+         */
+        @CheckReturnValue
+        public long getResetAfter() {
+            return resetAfter;
+        }
+
+        /**
+         * Returns the seconds to wait before retrying a rate limited request, rounded up.
+         *
+         * @return The seconds to wait, or {@link #MISSING}.
+         */
+        @CheckReturnValue
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        /**
+         * Returns whether or not the limit, remaining and reset headers were all present.
+         *
+         * @return true if the bucket can be updated from these values.
+         */
+        @CheckReturnValue
+        public boolean hasBucketInfo() {
+            return limit != MISSING && remaining != MISSING && resetAfter != MISSING;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.github.natanbc.reliqua.limiter;
 
+import com.github.natanbc.reliqua.request.RequestException;
 import okhttp3.Response;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.function.Supplier;
 
 public abstract class RateLimiter implements AutoCloseable {
     public static final int RATE_LIMIT_CODE = 429;
@@ -79,6 +82,59 @@ public abstract class RateLimiter implements AutoCloseable {
      */
     public abstract void backoffQueue();
 
+    /**
+     * Takes one request from the budget for a request sent without going through the queue, such as a
+     * {@link com.github.natanbc.reliqua.util.HedgePolicy hedge}, while another request of this limiter is in flight.
+     * Rate limiters which can't account for such requests return false.
+     *
+     * @return Whether or not the request may be sent.
+     */
+    public boolean tryAcquire() {
+        return false;
+    }
+
+    /**
+     * Returns how many requests are waiting in this limiter's queue. Rate limiters without a queue return 0.
+     *
+     * @return The queued requests.
+     */
+    @Nonnegative
+    @CheckReturnValue
+    public int getQueuedRequests() {
+        return 0;
+    }
+
+    /**
+     * Stops sending queued requests and fails them with errors from the given supplier. A request being sent at the
+     * moment is allowed to finish. Rate limiters without a queue return 0.
+     *
+     * @param error Creates the error each request fails with.
+     *
+     * @return How many requests were failed.
+     */
+    public int failQueued(@Nonnull Supplier<? extends RequestException> error) {
+        return 0;
+    }
+
+    /**
+     * Returns a copy of the current bucket state, so it can be restored after a restart. Rate limiters which keep no
+     * bucket state return null.
+     *
+     * @return The current state, or null if this limiter has none.
+     */
+    @Nullable
+    @CheckReturnValue
+    public LimiterState getState() {
+        return null;
+    }
+
+    /**
+     * Replaces the bucket state with a previously saved one. Rate limiters which keep no bucket state ignore it.
+     *
+     * @param state The state to restore.
+     */
+    public void restoreState(@Nonnull LimiterState state) {}
+
     /**
      * Creates a new rate limiter that does no handling of rate limits, useful for situations where few requests are made.
      *
@@ -105,6 +161,11 @@ public abstract class RateLimiter implements AutoCloseable {
         @Override
         public void backoffQueue() {}
 
+        @Override
+        public boolean tryAcquire() {
+            return true;
+        }
+
         @Override
         public boolean isRateLimit() {
             return false;
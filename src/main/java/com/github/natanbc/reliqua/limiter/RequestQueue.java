@@ -0,0 +1,520 @@
+package com.github.natanbc.reliqua.limiter;
+
+import com.github.natanbc.reliqua.request.RequestRejectedException;
+
+import javax.annotation.Nonnull;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of requests waiting for a rate limiter, bounded as configured by {@link QueueSettings}.
+ *
+ * <br>Requests are grouped by their {@link com.github.natanbc.reliqua.request.PendingRequest#getTenant() tenant}, and
+ * tenants take turns using deficit round robin: each turn a tenant sends as many requests as its
+ * {@link QueueSettings#setTenantWeight(String, int) weight}, so a tenant flooding the bucket only delays its own
+ * requests. Requests of a single tenant, and requests without one, are sent in the order they were added.
+ *
+ * <br>A request with a {@link com.github.natanbc.reliqua.request.PendingRequest#getCoalescingKey() coalescing key}
+ * takes the place of a queued request of the same tenant with the same key, which then completes with the outcome of
+ * the request replacing it.
+ *
+ * <br>Rate limiters add requests with {@link #enqueue(LimiterPair)}, which applies the overflow policy. Requests
+ * dropped to make room are completed with a {@link RequestRejectedException}. The other {@link BlockingQueue} methods
+ * only add requests if there's room, without dropping others.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RequestQueue extends AbstractQueue<LimiterPair> implements BlockingQueue<LimiterPair> {
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    // tenants with queued requests, the first one is the tenant whose turn it is
+    private final ArrayDeque<Tenant> active = new ArrayDeque<>();
+    private final Map<String, Integer> weights;
+    // latest queued request of each coalescing key
+    private final Map<String, Node> coalescing = new HashMap<>();
+    private long nextSequence;
+    private int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    private final QueueSettings.OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final Semaphore globalPermits;
+
+    RequestQueue(int capacity, QueueSettings.OverflowPolicy overflowPolicy, long blockTimeoutNanos, Semaphore globalPermits,
+                 Map<String, Integer> weights) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.globalPermits = globalPermits;
+        this.weights = weights;
+    }
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public RequestQueue() {
+        this(Integer.MAX_VALUE, QueueSettings.OverflowPolicy.REJECT_NEW, 0, null, Collections.emptyMap());
+    }
+
+    /**
+     * Adds a request to this queue, applying the overflow policy if it's full. With the
+     * {@link QueueSettings.OverflowPolicy#BLOCK BLOCK} policy, this blocks until there's room or the timeout elapses.
+     *
+     * @param pair The request to add.
+     *
+     * @return Whether or not the request was added. Rejected requests are not completed by this method.
+     */
+    public boolean enqueue(@Nonnull LimiterPair pair) {
+        return enqueue(pair, true);
+    }
+
+    /**
+     * Adds a request to this queue, applying the overflow policy if it's full.
+     *
+     * @param pair The request to add.
+     * @param mayBlock Whether the {@link QueueSettings.OverflowPolicy#BLOCK BLOCK} policy may block the caller. If
+     *                 false, the request is rejected right away when the queue is full. Rate limiters pass false when
+     *                 called from the thread which takes requests out of this queue.
+     *
+     * @return Whether or not the request was added. Rejected requests are not completed by this method.
+     */
+    public boolean enqueue(@Nonnull LimiterPair pair, boolean mayBlock) {
+        Objects.requireNonNull(pair, "Pair may not be null");
+        final String key = pair.getRequest().getCoalescingKey();
+        if(key != null) {
+            final LimiterPair superseded = coalesce(key, pair);
+            if(superseded != null) {
+                supersede(superseded, pair);
+                return true;
+            }
+        }
+        final List<LimiterPair> dropped = new ArrayList<>(1);
+        try {
+            if(overflowPolicy == QueueSettings.OverflowPolicy.BLOCK) {
+                return insert(pair, mayBlock ? blockTimeoutNanos : 0, false, dropped);
+            }
+            return insert(pair, 0, overflowPolicy != QueueSettings.OverflowPolicy.REJECT_NEW, dropped);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            // completed outside the lock, since completing runs the request's callbacks
+            for(LimiterPair p : dropped) {
+                p.getRequest().future.completeExceptionally(new RequestRejectedException("Request dropped from full queue"));
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(@Nonnull LimiterPair pair) {
+        try {
+            return insert(Objects.requireNonNull(pair, "Pair may not be null"), 0, false, null);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean offer(@Nonnull LimiterPair pair, long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        return insert(Objects.requireNonNull(pair, "Pair may not be null"), unit.toNanos(timeout), false, null);
+    }
+
+    @Override
+    public void put(@Nonnull LimiterPair pair) throws InterruptedException {
+        insert(Objects.requireNonNull(pair, "Pair may not be null"), Long.MAX_VALUE, false, null);
+    }
+
+    // replaces the queued request with the given key, returning it
+    private LimiterPair coalesce(String key, LimiterPair pair) {
+        lock.lock();
+        try {
+            final Node node = coalescing.get(key);
+            if(node == null || !Objects.equals(node.pair.getRequest().getTenant(), pair.getRequest().getTenant())) {
+                return null;
+            }
+            // the head may be running already, replacing it would throw its result away
+            final Tenant first = active.peekFirst();
+            if((first != null && first.nodes.peekFirst() == node) || node.pair.getRequest().isHandled()) {
+                return null;
+            }
+            final LimiterPair old = node.pair;
+            node.pair = pair;
+            node.priority = pair.getRequest().getPriority();
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void supersede(LimiterPair old, LimiterPair pair) {
+        final CompletableFuture<Object> future = (CompletableFuture<Object>) old.getRequest().future;
+        pair.getRequest().future.whenComplete((result, error) -> {
+            if(error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        });
+    }
+
+    private boolean insert(LimiterPair pair, long timeoutNanos, boolean drop, List<LimiterPair> dropped) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        if(globalPermits != null && !acquireGlobal(pair, timeoutNanos, drop, dropped)) {
+            return false;
+        }
+        try {
+            lock.lockInterruptibly();
+        } catch(InterruptedException e) {
+            if(globalPermits != null) globalPermits.release();
+            throw e;
+        }
+        boolean added = false;
+        try {
+            while(size >= capacity) {
+                if(drop) {
+                    final LimiterPair victim = victim(pair);
+                    if(victim == null) break;
+                    removePair(victim, false);
+                    dropped.add(unlink(victim));
+                    continue;
+                }
+                final long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if(remaining <= 0) break;
+                if(remaining == Long.MAX_VALUE) {
+                    notFull.await();
+                } else {
+                    notFull.awaitNanos(remaining);
+                }
+            }
+            if(size < capacity) {
+                addPair(pair);
+                notEmpty.signal();
+                added = true;
+            }
+            return added;
+        } finally {
+            lock.unlock();
+            if(!added && globalPermits != null) {
+                globalPermits.release();
+            }
+        }
+    }
+
+    private boolean acquireGlobal(LimiterPair pair, long timeoutNanos, boolean drop, List<LimiterPair> dropped) throws InterruptedException {
+        if(globalPermits.tryAcquire()) {
+            return true;
+        }
+        if(drop) {
+            // the global bound is shared, but requests can only be dropped from this bucket
+            lock.lock();
+            try {
+                final LimiterPair victim = victim(pair);
+                if(victim == null) return false;
+                removePair(victim, false);
+                dropped.add(victim);
+                // the victim's global permit is handed to the new request
+                notFull.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return timeoutNanos > 0 && globalPermits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // the request to drop so the given one fits, or null if the given one should be rejected
+    private LimiterPair victim(LimiterPair pair) {
+        // rate limiters run the head while it's still queued, so it's never dropped
+        final Tenant first = active.peekFirst();
+        final Node running = first == null ? null : first.nodes.peekFirst();
+        Node victim = null;
+        for(Tenant t : active) {
+            for(Node n : t.nodes) {
+                if(n == running || n.pair.getRequest().isHandled()) continue;
+                if(overflowPolicy == QueueSettings.OverflowPolicy.DROP_OLDEST) {
+                    // nodes of a tenant are in arrival order
+                    if(victim == null || n.sequence < victim.sequence) {
+                        victim = n;
+                    }
+                    break;
+                }
+                if(victim == null || n.priority < victim.priority || (n.priority == victim.priority && n.sequence < victim.sequence)) {
+                    victim = n;
+                }
+            }
+        }
+        if(victim == null) return null;
+        if(overflowPolicy == QueueSettings.OverflowPolicy.DROP_LOWEST_PRIORITY && victim.priority >= pair.getRequest().getPriority()) {
+            return null;
+        }
+        return victim.pair;
+    }
+
+    @Override
+    public LimiterPair poll() {
+        lock.lock();
+        try {
+            return unlink(pollPair());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LimiterPair poll(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while(size == 0) {
+                if(nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return unlink(pollPair());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nonnull
+    @Override
+    public LimiterPair take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while(size == 0) {
+                notEmpty.await();
+            }
+            return unlink(pollPair());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LimiterPair peek() {
+        lock.lock();
+        try {
+            final Tenant t = active.peekFirst();
+            return t == null ? null : t.nodes.peekFirst().pair;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            // rate limiters remove the head once it's handled, which counts as serving it
+            if(o instanceof LimiterPair && removePair((LimiterPair) o, true)) {
+                unlink((LimiterPair) o);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(@Nonnull Collection<? super LimiterPair> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@Nonnull Collection<? super LimiterPair> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while(n < maxElements && size > 0) {
+                c.add(unlink(pollPair()));
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of this queue, in the order requests were added. The iterator doesn't
+     * support removal.
+     *
+     * @return An iterator over the queued requests.
+     */
+    @Nonnull
+    @Override
+    public Iterator<LimiterPair> iterator() {
+        final List<Node> nodes = new ArrayList<>();
+        lock.lock();
+        try {
+            for(Tenant t : active) {
+                nodes.addAll(t.nodes);
+            }
+        } finally {
+            lock.unlock();
+        }
+        nodes.sort(Comparator.comparingLong(n -> n.sequence));
+        final List<LimiterPair> pairs = new ArrayList<>(nodes.size());
+        for(Node n : nodes) {
+            pairs.add(n.pair);
+        }
+        return pairs.iterator();
+    }
+
+    private void addPair(LimiterPair pair) {
+        final String name = pair.getRequest().getTenant();
+        final Tenant t = tenants.computeIfAbsent(name, n -> new Tenant(n, n == null ? 1 : weights.getOrDefault(n, 1)));
+        if(t.nodes.isEmpty()) {
+            active.addLast(t);
+            if(active.size() == 1) {
+                t.deficit = t.weight;
+            }
+        }
+        final Node node = new Node(pair, nextSequence++);
+        t.nodes.addLast(node);
+        final String key = pair.getRequest().getCoalescingKey();
+        if(key != null) {
+            coalescing.put(key, node);
+        }
+        size++;
+    }
+
+    private LimiterPair pollPair() {
+        final Tenant t = active.peekFirst();
+        if(t == null) return null;
+        final Node n = t.nodes.pollFirst();
+        served(t);
+        forget(n);
+        size--;
+        return n.pair;
+    }
+
+    // removes the given request, only charging its tenant's turn if it was served rather than dropped
+    private boolean removePair(LimiterPair pair, boolean served) {
+        final Tenant t = tenants.get(pair.getRequest().getTenant());
+        if(t == null) return false;
+        if(served && t == active.peekFirst() && t.nodes.peekFirst().pair == pair) {
+            pollPair();
+            return true;
+        }
+        for(Iterator<Node> it = t.nodes.iterator(); it.hasNext(); ) {
+            final Node n = it.next();
+            if(n.pair == pair) {
+                it.remove();
+                forget(n);
+                size--;
+                if(t.nodes.isEmpty()) {
+                    final boolean turn = t == active.peekFirst();
+                    active.remove(t);
+                    tenants.remove(t.name);
+                    t.deficit = 0;
+                    final Tenant next = active.peekFirst();
+                    if(turn && next != null) {
+                        next.deficit += next.weight;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forget(Node n) {
+        final String key = n.pair.getRequest().getCoalescingKey();
+        if(key != null) {
+            coalescing.remove(key, n);
+        }
+    }
+
+    // called after a request of the tenant whose turn it is leaves the queue
+    private void served(Tenant t) {
+        t.deficit--;
+        if(t.nodes.isEmpty()) {
+            active.pollFirst();
+            tenants.remove(t.name);
+            t.deficit = 0;
+        } else if(t.deficit < 1) {
+            active.pollFirst();
+            active.addLast(t);
+        } else {
+            return;
+        }
+        final Tenant next = active.peekFirst();
+        if(next != null) {
+            next.deficit += next.weight;
+        }
+    }
+
+    // called with the lock held for every request leaving the queue
+    private LimiterPair unlink(LimiterPair pair) {
+        if(pair != null) {
+            notFull.signal();
+            if(globalPermits != null) {
+                globalPermits.release();
+            }
+        }
+        return pair;
+    }
+
+    private static class Tenant {
+        final String name;
+        final int weight;
+        final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        int deficit;
+
+        Tenant(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private static class Node {
+        // replaced when a newer request with the same coalescing key is added
+        LimiterPair pair;
+        final long sequence;
+        int priority;
+
+        Node(LimiterPair pair, long sequence) {
+            this.pair = pair;
+            this.sequence = sequence;
+            this.priority = pair.getRequest().getPriority();
+        }
+    }
+}
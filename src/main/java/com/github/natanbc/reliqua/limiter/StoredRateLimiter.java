@@ -0,0 +1,225 @@
+package com.github.natanbc.reliqua.limiter;
+
+import com.github.natanbc.reliqua.Reliqua;
+import com.github.natanbc.reliqua.limiter.factory.RateLimiterFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+/**
+ * Rate limiter which keeps its bucket in a {@link BucketStore}, so every limiter using the same store and key, in this
+ * process or another one, shares a single budget.
+ *
+ * <br>Unlike {@link DefaultRateLimiter}, which trusts the last response it saw, a request is only sent after taking
+ * one request from the stored bucket. When the store is shared over the network, a {@code leaseSize} above 1 takes
+ * that many requests at once and hands them out locally, so only one in every {@code leaseSize} requests waits on the
+ * store. Leased requests which are still unused when the window resets are lost, and the ones left when the limiter
+ * is closed are given back.
+ *
+ * <br>Between leases the limiter answers from the bucket state it read with the last lease, and the values reported by
+ * responses are written to the store with the next lease, so the store is only contacted once per lease. Responses
+ * saying the window is used up are written right away, so other users of the store stop sending requests.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class StoredRateLimiter extends DefaultRateLimiter {
+    protected final BucketStore store;
+    protected final String key;
+    protected final int leaseSize;
+
+    private int leased;
+    private long leaseExpiry;
+    // bucket state read with the last lease, updated by responses since
+    private LimiterState cached;
+    // latest values reported by responses which weren't written to the store yet
+    private LimiterState unwritten;
+    private long unwrittenAt;
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param api The current api instance
+     * @param store The store holding the bucket.
+     * @param key Key identifying the bucket in the store.
+     * @param headers The headers the API uses to report rate limits.
+     * @param queueSettings How requests waiting for the bucket are queued.
+     * @param leaseSize How many requests to take from the store at once.
+     */
+    public StoredRateLimiter(Reliqua api, @Nonnull BucketStore store, @Nonnull String key, @Nonnull RateLimitHeaders headers,
+                             @Nonnull QueueSettings queueSettings, int leaseSize) {
+        super(api, key, headers, queueSettings);
+        if (leaseSize < 1) {
+            throw new IllegalArgumentException("Lease size must be positive");
+        }
+        this.store = Objects.requireNonNull(store, "Store may not be null");
+        this.key = Objects.requireNonNull(key, "Key may not be null");
+        this.leaseSize = leaseSize;
+    }
+
+    public StoredRateLimiter(Reliqua api, @Nonnull BucketStore store, @Nonnull String key, @Nonnull RateLimitHeaders headers, int leaseSize) {
+        this(api, store, key, headers, new QueueSettings(), leaseSize);
+    }
+
+    public StoredRateLimiter(Reliqua api, @Nonnull BucketStore store, @Nonnull String key, @Nonnull RateLimitHeaders headers) {
+        this(api, store, key, headers, 1);
+    }
+
+    public StoredRateLimiter(Reliqua api, @Nonnull BucketStore store, @Nonnull String key) {
+        this(api, store, key, RateLimitHeaders.DEFAULT);
+    }
+
+    @Override
+    public synchronized boolean isRateLimit() {
+        if (leasedRequests() > 0 || cached == null) {
+            return false;
+        }
+        return cached.getRemaining() <= 0 && cached.getResetTime() > System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized long retryAfter() {
+        return cached == null ? 0 : cached.getResetTime() - System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized int getRemainingRequests() {
+        if (cached == null) {
+            return leasedRequests();
+        }
+        final int stored = cached.getResetTime() > System.currentTimeMillis() ? cached.getRemaining() : cached.getLimit();
+        return (int) Math.min((long) Math.max(0, stored) + leasedRequests(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized long getTimeUntilReset() {
+        return cached == null ? 0 : cached.getResetTime();
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return acquire() == 1;
+    }
+
+    @Override
+    public LimiterState getState() {
+        return store.getState(key);
+    }
+
+    @Override
+    public void restoreState(@Nonnull LimiterState state) {
+        store.update(key, state.getLimit(), state.getRemaining(), state.getResetTime(), System.currentTimeMillis());
+    }
+
+    @Override
+    protected synchronized void updateBucket(int limit, int remaining, long resetTime, long now) {
+        cached = new LimiterState(limit, remaining, resetTime);
+        unwritten = cached;
+        unwrittenAt = now;
+        if (remaining <= 0) {
+            // the server says the window is used up, whatever is still leased would only get 429s
+            leased = 0;
+            writeBack();
+        }
+    }
+
+    @Override
+    public void close() {
+        final int unused;
+        synchronized (this) {
+            writeBack();
+            unused = leasedRequests();
+            leased = 0;
+        }
+        if (unused > 0) {
+            store.release(key, unused, System.currentTimeMillis());
+        }
+        super.close();
+    }
+
+    @Override
+    protected boolean handle(LimiterPair pair) {
+        if (pair.getRequest().isHandled()) {
+            pendingRequests.remove(pair);
+            return true;
+        }
+
+        if (acquire() == 0) {
+            return false;
+        }
+
+        run(pair);
+
+        return true;
+    }
+
+    /**
+     * Takes a request from the local lease, or leases more from the store if it ran out.
+     *
+     * @return 1 if a request was taken, 0 if the bucket is empty.
+     */
+    protected synchronized int acquire() {
+        final long now = System.currentTimeMillis();
+        if (leased > 0 && now < leaseExpiry) {
+            leased--;
+            return 1;
+        }
+        leased = 0;
+
+        // the values reported since the last lease are written with it, so leasing is a single call to the store
+        final BucketLease lease = store.acquire(key, leaseSize, now, unwritten, unwrittenAt);
+        unwritten = null;
+        cached = lease.getState();
+        final int taken = lease.getTaken();
+        if (taken > 1) {
+            leased = taken - 1;
+            leaseExpiry = cached.getResetTime();
+        }
+        return Math.min(taken, 1);
+    }
+
+    private synchronized void writeBack() {
+        if (unwritten != null) {
+            store.update(key, unwritten.getLimit(), unwritten.getRemaining(), unwritten.getResetTime(), unwrittenAt);
+            unwritten = null;
+        }
+    }
+
+    private synchronized int leasedRequests() {
+        return System.currentTimeMillis() < leaseExpiry ? leased : 0;
+    }
+
+    public static class Factory extends RateLimiterFactory {
+        private final Reliqua api;
+        private final BucketStore store;
+        private final RateLimitHeaders headers;
+        private final QueueSettings queueSettings;
+        private final int leaseSize;
+
+        public Factory(Reliqua api, @Nonnull BucketStore store, @Nonnull RateLimitHeaders headers, @Nonnull QueueSettings queueSettings, int leaseSize) {
+            if (leaseSize < 1) {
+                throw new IllegalArgumentException("Lease size must be positive");
+            }
+            this.api = api;
+            this.store = Objects.requireNonNull(store, "Store may not be null");
+            this.headers = Objects.requireNonNull(headers, "Headers may not be null");
+            this.queueSettings = Objects.requireNonNull(queueSettings, "Queue settings may not be null");
+            this.leaseSize = leaseSize;
+        }
+
+        public Factory(Reliqua api, @Nonnull BucketStore store, @Nonnull RateLimitHeaders headers, int leaseSize) {
+            this(api, store, headers, new QueueSettings(), leaseSize);
+        }
+
+        public Factory(Reliqua api, @Nonnull BucketStore store, @Nonnull RateLimitHeaders headers) {
+            this(api, store, headers, 1);
+        }
+
+        public Factory(Reliqua api, @Nonnull BucketStore store) {
+            this(api, store, RateLimitHeaders.DEFAULT);
+        }
+
+        @Override
+        protected RateLimiter createRateLimiter(String key) {
+            return new StoredRateLimiter(api, store, key, headers, queueSettings, leaseSize);
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package com.github.natanbc.reliqua.limiter.factory;
 
+import com.github.natanbc.reliqua.limiter.LimiterSnapshot;
+import com.github.natanbc.reliqua.limiter.LimiterState;
 import com.github.natanbc.reliqua.limiter.RateLimiter;
+import com.github.natanbc.reliqua.request.RequestException;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Creates rate limiters for a given key.
@@ -56,6 +62,63 @@ public abstract class RateLimiterFactory {
         }
     }
 
+    /**
+     * Returns how many requests are waiting in the queues of every rate limiter created by this factory.
+     *
+     * @return The queued requests.
+     */
+    public int getQueuedRequests() {
+        int queued = 0;
+        for (final RateLimiter rateLimiter : this.rateLimiterMap.values()) {
+            queued += rateLimiter.getQueuedRequests();
+        }
+        return queued;
+    }
+
+    /**
+     * Fails the queued requests of every rate limiter created by this factory.
+     *
+     * @param error Creates the error each request fails with.
+     *
+     * @return How many requests were failed.
+     *
+     * @see RateLimiter#failQueued(Supplier)
+     */
+    public int failQueued(Supplier<? extends RequestException> error) {
+        int failed = 0;
+        for (final RateLimiter rateLimiter : this.rateLimiterMap.values()) {
+            failed += rateLimiter.failQueued(error);
+        }
+        return failed;
+    }
+
+    /**
+     * Returns the state of every rate limiter created by this factory which keeps bucket state.
+     *
+     * @return A snapshot of the current rate limiters.
+     */
+    public LimiterSnapshot snapshot() {
+        final Map<String, LimiterState> states = new HashMap<>();
+        for (final Map.Entry<String, RateLimiter> entry : this.rateLimiterMap.entrySet()) {
+            final LimiterState state = entry.getValue().getState();
+            if (state != null) {
+                states.put(entry.getKey(), state);
+            }
+        }
+        return new LimiterSnapshot(states);
+    }
+
+    /**
+     * Restores the rate limiters saved in the given snapshot, creating them if needed.
+     *
+     * @param snapshot The snapshot to restore.
+     */
+    public void restore(LimiterSnapshot snapshot) {
+        for (final Map.Entry<String, LimiterState> entry : snapshot.getStates().entrySet()) {
+            getRateLimiter(entry.getKey()).restoreState(entry.getValue());
+        }
+    }
+
     /**
      * Returns a rate limiter factory whose rate limiters directly handle all requests, with no throttling.
      *
@@ -81,5 +144,26 @@ public abstract class RateLimiterFactory {
         protected RateLimiter createRateLimiter(String key) {
             throw new UnsupportedOperationException();
         }
+
+        @Override
+        public void shutdownAllRateLimiters() {}
+
+        @Override
+        public int getQueuedRequests() {
+            return 0;
+        }
+
+        @Override
+        public int failQueued(Supplier<? extends RequestException> error) {
+            return 0;
+        }
+
+        @Override
+        public LimiterSnapshot snapshot() {
+            return new LimiterSnapshot(Collections.emptyMap());
+        }
+
+        @Override
+        public void restore(LimiterSnapshot snapshot) {}
     }
 }
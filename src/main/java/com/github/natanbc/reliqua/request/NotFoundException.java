@@ -0,0 +1,32 @@
+package com.github.natanbc.reliqua.request;
+
+import javax.annotation.CheckReturnValue;
+
+/**
+ * Thrown for requests answered from a {@link com.github.natanbc.reliqua.util.NegativeCache NegativeCache}, whose
+ * resource was recently reported missing. Has no stack trace, since it's created for every cached miss.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class NotFoundException extends RequestException {
+    private final int statusCode;
+
+    public NotFoundException(int statusCode, String url) {
+        super("Server returned " + statusCode + " for " + url + " (cached)");
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Returns the status code of the cached response, 404 or 410.
+     *
+     * @return The cached status code.
+     */
+    @CheckReturnValue
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
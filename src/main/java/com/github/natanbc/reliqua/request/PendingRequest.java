@@ -3,12 +3,14 @@ package com.github.natanbc.reliqua.request;
 import com.github.natanbc.reliqua.Reliqua;
 import com.github.natanbc.reliqua.limiter.LimiterPair;
 import com.github.natanbc.reliqua.limiter.RateLimiter;
+import com.github.natanbc.reliqua.util.RequestPublisher;
 import com.github.natanbc.reliqua.util.StatusCodeValidator;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import org.reactivestreams.Publisher;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
@@ -19,9 +21,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
 /**
@@ -43,6 +48,8 @@ public abstract class PendingRequest<T> {
     private final StatusCodeValidator statusCodeValidator;
     private final RateLimiter rateLimiter;
     public final CompletableFuture<T> future = new CompletableFuture<>();
+    private volatile boolean mapping;
+    private volatile int lastStatusCode;
 
     public PendingRequest(@Nonnull Reliqua api, @Nonnull RateLimiter rateLimiter, @Nonnull Request httpRequest, @Nullable StatusCodeValidator statusCodeValidator) {
         this.api = Objects.requireNonNull(api, "API may not be null");
@@ -84,6 +91,65 @@ public abstract class PendingRequest<T> {
         return statusCodeValidator;
     }
 
+    /**
+     * Returns whether or not this request is done with its rate limiter, either because it completed or because its
+     * response is being mapped on the {@link Reliqua#getMapperExecutor() mapper executor}. Requests which got a 429
+     * response aren't, and are retried by their rate limiter.
+     *
+     * @return Whether or not this request was handled.
+     */
+    @CheckReturnValue
+    public boolean isHandled() {
+        return mapping || future.isDone();
+    }
+
+    /**
+     * Returns the status code of the response to the latest attempt of this request.
+     *
+     * @return The latest status code, or 0 if no response was received.
+     */
+    @CheckReturnValue
+    public int getLastStatusCode() {
+        return lastStatusCode;
+    }
+
+    /**
+     * Returns the priority of this request. When a rate limiter's queue is full, lower priority requests may be
+     * dropped to make room for higher priority ones. Defaults to 0.
+     *
+     * @return The priority of this request.
+     *
+     * @see com.github.natanbc.reliqua.limiter.QueueSettings.OverflowPolicy#DROP_LOWEST_PRIORITY
+     */
+    public int getPriority() {
+        return 0;
+    }
+
+    /**
+     * Returns the tenant this request is sent on behalf of. Rate limiters share their budget fairly between the
+     * tenants with requests waiting. Defaults to null, which is treated as a tenant of its own.
+     *
+     * @return The tenant of this request, or null.
+     *
+     * @see com.github.natanbc.reliqua.limiter.QueueSettings#setTenantWeight(String, int)
+     */
+    @Nullable
+    public String getTenant() {
+        return null;
+    }
+
+    /**
+     * Returns the key used to coalesce this request with others. While this request waits in its rate limiter's queue,
+     * a newer request with the same key takes its place, and this request completes with the newer one's outcome.
+     * Defaults to null, which never coalesces.
+     *
+     * @return The coalescing key of this request, or null.
+     */
+    @Nullable
+    public String getCoalescingKey() {
+        return null;
+    }
+
     @Nullable
     protected abstract T onSuccess(@Nonnull Response response) throws IOException;
 
@@ -124,6 +190,20 @@ public abstract class PendingRequest<T> {
         }
     }
 
+    /**
+     * Returns a publisher emitting the result of this request. The request is only executed once the subscriber
+     * requests its result.
+     *
+     * @return A publisher of this request's result.
+     *
+     * @see RequestPublisher
+     */
+    @Nonnull
+    @CheckReturnValue
+    public Publisher<T> toPublisher() {
+        return RequestPublisher.single(this);
+    }
+
     /**
      * Execute this request asynchronously, calling the appropriate callback when it's done.
      *
@@ -137,45 +217,105 @@ public abstract class PendingRequest<T> {
         Consumer<T> finalOnSuccess = onSuccess;
         Consumer<RequestException> finalOnError = onError;
 
-        this.future.thenAccept(finalOnSuccess).exceptionally((thr) -> {
-            finalOnError.accept((RequestException) thr);
-            return null;
+        this.future.whenComplete((result, thr) -> {
+            if(thr == null) {
+                finalOnSuccess.accept(result);
+            } else {
+                finalOnError.accept(toRequestException(thr));
+            }
         });
 
-        rateLimiter.queue(new LimiterPair(this, () -> this.executeInternally(finalOnSuccess, finalOnError)));
+        if(api.isShutdown()) {
+            future.completeExceptionally(new ShutdownException("Reliqua instance was shut down"));
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Hands this request to its rate limiter to be executed. Requests which aren't sent on their own, such as batched
+     * ones, override this to route themselves elsewhere.
+     */
+    protected void dispatch() {
+        rateLimiter.queue(new LimiterPair(this, this::executeInternally));
+    }
+
+    /**
+     * Sends the HTTP request and waits for its response. Runs on the rate limiter's thread.
+     *
+     * @return The response received.
+     *
+     * @throws IOException If the request could not be executed.
+     */
+    @Nonnull
+    protected Response call() throws IOException {
+        return api.getClient().newCall(httpRequest).execute();
     }
 
-    private void executeInternally(@Nonnull Consumer<T> onSuccess, @Nonnull Consumer<RequestException> onError) {
+    private void executeInternally() {
         final StackTraceElement[] callSite = api.isTrackingCallSites() ? Thread.currentThread().getStackTrace() : null;
-        try (final Response response = api.getClient().newCall(httpRequest).execute()) {
-            rateLimiter.update(response);
+        Response response = null;
+        lastStatusCode = 0;
+        try {
+            response = call();
             final int code = response.code();
+            lastStatusCode = code;
+            rateLimiter.update(response);
 
             if (code == RateLimiter.RATE_LIMIT_CODE) {
                 rateLimiter.backoffQueue();
                 return;
             }
 
-            final ResponseBody body = response.body();
-
             if(!statusCodeValidator.test(code)) {
+                final ResponseBody body = response.body();
                 try {
-                    onError(new RequestContext<>(callSite, onSuccess, onError, response));
+                    onError(new RequestContext<>(callSite, future::complete, future::completeExceptionally, response));
                 } finally {
                     if(body != null) {
                         body.close();
                     }
                 }
+                if(!future.isDone()) {
+                    future.completeExceptionally(new RequestException("Error handler did not complete the request", callSite));
+                }
                 return;
             }
 
-            try {
-                future.complete(onSuccess(response));
-            } finally {
-                if(body != null) {
-                    body.close();
+            if(api.isTerminated()) {
+                future.completeExceptionally(new ShutdownException("Response received after the shutdown deadline passed"));
+                return;
+            }
+
+            final Executor mapperExecutor = api.getMapperExecutor();
+            if(mapperExecutor != null) {
+                final Response r = response;
+                mapping = true;
+                try {
+                    mapperExecutor.execute(() -> map(r, callSite));
+                    // closed by the mapper
+                    response = null;
+                    return;
+                } catch(RejectedExecutionException e) {
+                    // the executor was shut down, map here instead
                 }
             }
+            map(response, callSite);
+            response = null;
+        } catch(RequestException e) {
+            future.completeExceptionally(e);
+        } catch (Exception e) {
+            future.completeExceptionally(new RequestException(e, callSite));
+        } finally {
+            if(response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private void map(Response response, StackTraceElement[] callSite) {
+        try (final Response r = response) {
+            future.complete(onSuccess(r));
         } catch(RequestException e) {
             future.completeExceptionally(e);
         } catch (Exception e) {
@@ -183,6 +323,13 @@ public abstract class PendingRequest<T> {
         }
     }
 
+    private static RequestException toRequestException(Throwable thr) {
+        if(thr instanceof CompletionException && thr.getCause() != null) {
+            thr = thr.getCause();
+        }
+        return thr instanceof RequestException ? (RequestException) thr : new RequestException(thr);
+    }
+
     /**
      * Execute this request asynchronously, calling the appropriate callback when it's done.
      *
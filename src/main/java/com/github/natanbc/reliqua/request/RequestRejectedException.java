@@ -0,0 +1,12 @@
+package com.github.natanbc.reliqua.request;
+
+/**
+ * Thrown when a request is not executed because its rate limiter's queue was full, or because it was dropped from the
+ * queue to make room for other requests.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RequestRejectedException extends RequestException {
+    public RequestRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.natanbc.reliqua.request;
+
+/**
+ * Thrown when a request is made after its {@link com.github.natanbc.reliqua.Reliqua Reliqua} instance was shut down,
+ * or when it was still waiting in its rate limiter's queue once the shutdown's drain deadline passed.
+ *
+ * @see com.github.natanbc.reliqua.Reliqua#shutdown(long, java.util.concurrent.TimeUnit)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ShutdownException extends RequestRejectedException {
+    public ShutdownException(String message) {
+        super(message);
+    }
+}
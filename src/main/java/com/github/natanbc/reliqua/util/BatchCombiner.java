@@ -0,0 +1,12 @@
+package com.github.natanbc.reliqua.util;
+
+import okhttp3.Request;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+@FunctionalInterface
+public interface BatchCombiner {
+    @Nonnull
+    Request combine(@Nonnull String batchKey, @Nonnull List<Request> requests);
+}
@@ -0,0 +1,14 @@
+package com.github.natanbc.reliqua.util;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
+
+@FunctionalInterface
+public interface BatchSplitter<T> {
+    @Nonnull
+    List<T> split(@Nonnull Response response, @Nonnull List<Request> requests) throws IOException;
+}
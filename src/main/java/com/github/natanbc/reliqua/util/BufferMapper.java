@@ -0,0 +1,20 @@
+package com.github.natanbc.reliqua.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Maps a response body read into a pooled buffer. The buffer is returned to its pool once this method returns, so it
+ * must not be kept.
+ *
+ * @param <T> The type returned.
+ *
+ * @see PendingRequestBuilder#buildToBuffer(BufferPool, BufferMapper, ErrorHandler)
+ */
+@FunctionalInterface
+public interface BufferMapper<T> {
+    @Nullable
+    T apply(@Nonnull ByteBuffer body) throws IOException;
+}
@@ -0,0 +1,92 @@
+package com.github.natanbc.reliqua.util;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers which response bodies are read into, so binary downloads don't allocate a new array on the
+ * heap for every response.
+ *
+ * <br>Buffers are allocated as needed and up to {@code maxPooled} of them are kept once released. Direct buffers are
+ * expensive to allocate, so the pool should be sized for the downloads running at once.
+ *
+ * @see PendingRequestBuilder#buildToBuffer(BufferPool, BufferMapper, ErrorHandler)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class BufferPool {
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize Size of the buffers, which is the largest body they can hold.
+     * @param maxPooled How many released buffers are kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if(bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        if(maxPooled < 0) {
+            throw new IllegalArgumentException("Max pooled may not be negative");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    @CheckReturnValue
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns how many buffers are currently waiting to be reused.
+     *
+     * @return The number of pooled buffers.
+     */
+    @CheckReturnValue
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    /**
+     * Takes a buffer from this pool, allocating one if it's empty. The buffer is cleared.
+     *
+     * @return A buffer of {@link #getBufferSize() the pool's size}.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if(buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to this pool. The buffer must not be used afterwards.
+     *
+     * @param buffer A buffer acquired from this pool.
+     */
+    public void release(@Nonnull ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Buffer may not be null");
+        if(buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer doesn't belong to this pool");
+        }
+        if(pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.natanbc.reliqua.util;
+
+import okhttp3.OkHttpClient;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client settings overridden for some requests, such as longer timeouts for slow endpoints.
+ *
+ * <br>Requests with overrides use a client derived from the {@link com.github.natanbc.reliqua.Reliqua#getClient() main
+ * client}, which shares its connection pool and dispatcher. Derived clients are cached by
+ * {@link com.github.natanbc.reliqua.Reliqua#getClient(ClientOverrides) Reliqua}, so requests with equal overrides
+ * share one, as long as it's among the few most recently used. Keep overrides in constants instead of creating them
+ * per request. Instances are immutable.
+ *
+ * <br>Timeouts have millisecond precision. Positive timeouts under a millisecond are rounded up to one, since a
+ * timeout of 0 means none.
+ *
+ * @see PendingRequestBuilder#setClientOverrides(ClientOverrides)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ClientOverrides {
+    /**
+     * Overrides nothing.
+     */
+    public static final ClientOverrides NONE = new ClientOverrides(-1, -1, -1, -1, null);
+
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final long callTimeoutMillis;
+    private final Boolean followRedirects;
+
+    private ClientOverrides(long connectTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis,
+                            long callTimeoutMillis, Boolean followRedirects) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.followRedirects = followRedirects;
+    }
+
+    /**
+     * Returns a copy of these overrides with the given connect timeout.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return The new overrides.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ClientOverrides withConnectTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return new ClientOverrides(toMillis(timeout, unit), readTimeoutMillis, writeTimeoutMillis, callTimeoutMillis, followRedirects);
+    }
+
+    /**
+     * Returns a copy of these overrides with the given read timeout, which applies to each read from the connection.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return The new overrides.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ClientOverrides withReadTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return new ClientOverrides(connectTimeoutMillis, toMillis(timeout, unit), writeTimeoutMillis, callTimeoutMillis, followRedirects);
+    }
+
+    /**
+     * Returns a copy of these overrides with the given write timeout, which applies to each write to the connection.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return The new overrides.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ClientOverrides withWriteTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return new ClientOverrides(connectTimeoutMillis, readTimeoutMillis, toMillis(timeout, unit), callTimeoutMillis, followRedirects);
+    }
+
+    /**
+     * Returns a copy of these overrides with the given call timeout, which bounds the whole request, from resolving
+     * the host to reading the response body. The body is read while mapping the response, possibly on the
+     * {@link com.github.natanbc.reliqua.Reliqua#setMapperExecutor(java.util.concurrent.Executor) mapper executor},
+     * so the timeout also covers mapping and any time spent waiting for a mapper thread.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return The new overrides.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ClientOverrides withCallTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return new ClientOverrides(connectTimeoutMillis, readTimeoutMillis, writeTimeoutMillis, toMillis(timeout, unit), followRedirects);
+    }
+
+    /**
+     * Returns a copy of these overrides which follows redirects, or not.
+     *
+     * @param followRedirects Whether or not redirects are followed, null to use the client's setting.
+     *
+     * @return The new overrides.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ClientOverrides withFollowRedirects(@Nullable Boolean followRedirects) {
+        return new ClientOverrides(connectTimeoutMillis, readTimeoutMillis, writeTimeoutMillis, callTimeoutMillis, followRedirects);
+    }
+
+    /**
+     * Returns whether or not these overrides change anything.
+     *
+     * @return true if nothing is overridden.
+     */
+    @CheckReturnValue
+    public boolean isEmpty() {
+        return equals(NONE);
+    }
+
+    /**
+     * Applies these overrides to a client builder.
+     *
+     * @param builder Builder of the derived client.
+     *
+     * @return The given builder.
+     */
+    @Nonnull
+    public OkHttpClient.Builder apply(@Nonnull OkHttpClient.Builder builder) {
+        Objects.requireNonNull(builder, "Builder may not be null");
+        if(connectTimeoutMillis >= 0) builder.connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        if(readTimeoutMillis >= 0) builder.readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS);
+        if(writeTimeoutMillis >= 0) builder.writeTimeout(writeTimeoutMillis, TimeUnit.MILLISECONDS);
+        if(callTimeoutMillis >= 0) builder.callTimeout(callTimeoutMillis, TimeUnit.MILLISECONDS);
+        if(followRedirects != null) builder.followRedirects(followRedirects);
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof ClientOverrides)) return false;
+        ClientOverrides that = (ClientOverrides) o;
+        return connectTimeoutMillis == that.connectTimeoutMillis &&
+                readTimeoutMillis == that.readTimeoutMillis &&
+                writeTimeoutMillis == that.writeTimeoutMillis &&
+                callTimeoutMillis == that.callTimeoutMillis &&
+                Objects.equals(followRedirects, that.followRedirects);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connectTimeoutMillis, readTimeoutMillis, writeTimeoutMillis, callTimeoutMillis, followRedirects);
+    }
+
+    @Override
+    public String toString() {
+        return "ClientOverrides(connect=" + connectTimeoutMillis + "ms, read=" + readTimeoutMillis + "ms, write="
+                + writeTimeoutMillis + "ms, call=" + callTimeoutMillis + "ms, followRedirects=" + followRedirects + ")";
+    }
+
+    private static long toMillis(long timeout, TimeUnit unit) {
+        if(timeout < 0) {
+            throw new IllegalArgumentException("Timeout may not be negative");
+        }
+        final long millis = Objects.requireNonNull(unit, "Unit may not be null").toMillis(timeout);
+        // OkHttp reads 0 as no timeout, so a timeout under a millisecond is rounded up instead of disabling it
+        return millis == 0 && timeout > 0 ? 1 : millis;
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.natanbc.reliqua.util;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection and concurrency settings applied to the {@link OkHttpClient} created by a
+ * {@link com.github.natanbc.reliqua.Reliqua Reliqua} instance.
+ *
+ * <br>The defaults keep more idle connections around than OkHttp does, so bursts after a quiet period reuse
+ * connections instead of paying for new TLS handshakes, and raise the dispatcher limits for calls enqueued on the
+ * client, so they don't wait behind OkHttp's default of 5 concurrent calls per host. HTTP/2 is preferred, letting
+ * concurrent requests to a host share a single connection.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ConnectionSettings {
+    private boolean preferHttp2 = true;
+    private int maxIdleConnections = 32;
+    private long keepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+    private int maxRequests = 256;
+    private int maxRequestsPerHost = 64;
+
+    /**
+     * Sets whether or not HTTP/2 should be negotiated when the server supports it. Defaults to true.
+     *
+     * @param preferHttp2 false to only use HTTP/1.1.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public ConnectionSettings setPreferHttp2(boolean preferHttp2) {
+        this.preferHttp2 = preferHttp2;
+        return this;
+    }
+
+    /**
+     * Sets how many idle connections are kept in the pool. Defaults to 32.
+     *
+     * @param maxIdleConnections Maximum idle connections.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public ConnectionSettings setMaxIdleConnections(int maxIdleConnections) {
+        if(maxIdleConnections < 0) {
+            throw new IllegalArgumentException("Max idle connections may not be negative");
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        return this;
+    }
+
+    /**
+     * Sets how long idle connections are kept in the pool. Defaults to 5 minutes.
+     *
+     * @param keepAlive How long to keep idle connections.
+     * @param unit Unit of the keep alive.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public ConnectionSettings setKeepAlive(long keepAlive, @Nonnull TimeUnit unit) {
+        if(keepAlive <= 0) {
+            throw new IllegalArgumentException("Keep alive must be positive");
+        }
+        this.keepAliveMillis = unit.toMillis(keepAlive);
+        return this;
+    }
+
+    /**
+     * Sets how many enqueued calls may run at once. Defaults to 256.
+     *
+     * @param maxRequests Maximum concurrent enqueued calls.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public ConnectionSettings setMaxRequests(int maxRequests) {
+        if(maxRequests < 1) {
+            throw new IllegalArgumentException("Max requests must be positive");
+        }
+        this.maxRequests = maxRequests;
+        return this;
+    }
+
+    /**
+     * Sets how many enqueued calls to a single host may run at once. Defaults to 64.
+     *
+     * @param maxRequestsPerHost Maximum concurrent enqueued calls per host.
+     *
+     * @return This object.
+     */
+    @Nonnull
+    public ConnectionSettings setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if(maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("Max requests per host must be positive");
+        }
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        return this;
+    }
+
+    @CheckReturnValue
+    public boolean isPreferHttp2() {
+        return preferHttp2;
+    }
+
+    @CheckReturnValue
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    @CheckReturnValue
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    @CheckReturnValue
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    @CheckReturnValue
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Applies these settings to the given builder, replacing its connection pool, dispatcher and protocols.
+     *
+     * @param builder The builder to configure.
+     *
+     * @return The given builder.
+     */
+    @Nonnull
+    public OkHttpClient.Builder apply(@Nonnull OkHttpClient.Builder builder) {
+        Objects.requireNonNull(builder, "Builder may not be null");
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        return builder
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(preferHttp2
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1));
+    }
+
+    /**
+     * Creates a client with these settings, which doesn't follow redirects except from http to https.
+     *
+     * @return A new client.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public OkHttpClient createClient() {
+        return apply(new OkHttpClient.Builder()
+                .followRedirects(false)
+                .followSslRedirects(true))
+                .build();
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.natanbc.reliqua.util;
+
+import com.github.natanbc.reliqua.limiter.RateLimiter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a second attempt of a slow request, keeping whichever response arrives first and cancelling the other. A 429
+ * or 5xx response only wins if no other attempt is still running, so a fast failure doesn't cancel an attempt which
+ * could still succeed.
+ *
+ * <br>The hedge is sent once the request takes longer than a percentile of the latencies recently observed by this
+ * policy, so only the slowest requests are hedged. A hedge is only sent if the hedge budget allows it and the rate
+ * limiter {@link RateLimiter#tryAcquire() grants} it a request: every request adds {@code budgetRatio} to the
+ * budget, up to a small cap, and every hedge takes 1 from it. With a ratio of 0.1, at most about 10% of requests are
+ * hedged. A losing attempt which got a 429 still updates the rate limiter.
+ *
+ * <br>A policy keeps latency statistics, so it should be shared by the requests of a single route. Only idempotent
+ * requests may be hedged.
+ *
+ * @see PendingRequestBuilder#setHedgePolicy(HedgePolicy)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class HedgePolicy {
+    private static final int SAMPLES = 256;
+    // the delay is recomputed every this many samples instead of sorting on every request
+    private static final int RECOMPUTE_INTERVAL = 16;
+    private static final double MAX_BUDGET = 10;
+
+    private final double percentile;
+    private final double budgetRatio;
+    private final long minDelayMillis;
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private long delayMillis = -1;
+    private double budget;
+    private long hedges;
+
+    /**
+     * Creates a new hedge policy.
+     *
+     * @param percentile Latency percentile after which a hedge is sent, between 0 and 1 (exclusive).
+     * @param budgetRatio Fraction of requests which may be hedged, between 0 and 1.
+     * @param minDelay Minimum time to wait before hedging.
+     * @param unit Unit of the minimum delay.
+     */
+    public HedgePolicy(double percentile, double budgetRatio, long minDelay, @Nonnull TimeUnit unit) {
+        if(!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1");
+        }
+        if(!(budgetRatio >= 0 && budgetRatio <= 1)) {
+            throw new IllegalArgumentException("Budget ratio must be between 0 and 1");
+        }
+        if(minDelay < 0) {
+            throw new IllegalArgumentException("Min delay may not be negative");
+        }
+        this.percentile = percentile;
+        this.budgetRatio = budgetRatio;
+        this.minDelayMillis = unit.toMillis(minDelay);
+    }
+
+    /**
+     * Creates a policy hedging requests slower than the 95th percentile, for at most 5% of requests, waiting at least
+     * 10 milliseconds.
+     */
+    public HedgePolicy() {
+        this(0.95, 0.05, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns how long requests currently wait before being hedged. Until enough latencies were observed, no hedges
+     * are sent and this returns -1.
+     *
+     * @return The hedging delay, in milliseconds.
+     */
+    @CheckReturnValue
+    public synchronized long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Returns how many hedges were sent.
+     *
+     * @return The number of hedges sent.
+     */
+    @CheckReturnValue
+    public synchronized long getHedgeCount() {
+        return hedges;
+    }
+
+    /**
+     * Executes the request, hedging it if it's slow. Called by the request in place of a single call.
+     *
+     * @param client The client to send the request with.
+     * @param request The request to send.
+     * @param rateLimiter The rate limiter of the request, which the hedge takes a request from.
+     *
+     * @return The first response received.
+     *
+     * @throws IOException If every attempt failed.
+     */
+    @Nonnull
+    public Response execute(@Nonnull OkHttpClient client, @Nonnull Request request, @Nonnull RateLimiter rateLimiter) throws IOException {
+        final long delay;
+        synchronized(this) {
+            budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+            delay = delayMillis;
+        }
+        final long start = System.nanoTime();
+        final Race race = new Race(rateLimiter);
+        race.start(client.newCall(request));
+        try {
+            Response response = delay < 0 ? null : race.await(delay);
+            if(response == null && delay >= 0 && tryHedge(rateLimiter)) {
+                race.start(client.newCall(request));
+            }
+            if(response == null) {
+                response = race.await(-1);
+            }
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return response;
+        } finally {
+            race.cancelLosers();
+        }
+    }
+
+    private boolean tryHedge(RateLimiter rateLimiter) {
+        synchronized(this) {
+            if(budget < 1) {
+                return false;
+            }
+        }
+        // may wait on a shared bucket store, so it's not called holding the lock
+        if(!rateLimiter.tryAcquire()) {
+            return false;
+        }
+        synchronized(this) {
+            budget--;
+            hedges++;
+        }
+        return true;
+    }
+
+    private synchronized void record(long latencyMillis) {
+        latencies[nextSample] = latencyMillis;
+        nextSample = (nextSample + 1) % SAMPLES;
+        if(sampleCount < SAMPLES) sampleCount++;
+        if(sampleCount >= RECOMPUTE_INTERVAL && nextSample % RECOMPUTE_INTERVAL == 0) {
+            final long[] sorted = Arrays.copyOf(latencies, sampleCount);
+            Arrays.sort(sorted);
+            delayMillis = Math.max(minDelayMillis, sorted[(int) (percentile * (sorted.length - 1))]);
+        }
+    }
+
+    /**
+     * Attempts of a single request racing against each other.
+     */
+    private static class Race implements Callback {
+        private final RateLimiter rateLimiter;
+        private final List<Call> calls = new ArrayList<>(2);
+        private Call winnerCall;
+        private Response winner;
+        // retryable response kept in case the other attempts do no better
+        private Call heldCall;
+        private Response held;
+        private IOException failure;
+        private int completed;
+
+        Race(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+        }
+
+        synchronized void start(Call call) {
+            calls.add(call);
+            call.enqueue(this);
+        }
+
+        /**
+         * Waits for the first response.
+         *
+         * @param timeoutMillis How long to wait, negative to wait until every attempt finished.
+         *
+         * @return The first response, or null if the timeout elapsed first.
+         */
+        synchronized Response await(long timeoutMillis) throws IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while(winner == null && completed < calls.size()) {
+                    if(timeoutMillis < 0) {
+                        wait();
+                    } else {
+                        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if(remaining <= 0) return null;
+                        wait(remaining);
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response");
+            }
+            if(winner != null) return winner;
+            throw failure;
+        }
+
+        void cancelLosers() {
+            final Response unused;
+            synchronized(this) {
+                for(Call call : calls) {
+                    if(call != winnerCall) {
+                        call.cancel();
+                    }
+                }
+                unused = held;
+                held = null;
+            }
+            if(unused != null) {
+                discard(unused);
+            }
+        }
+
+        @Override
+        public synchronized void onFailure(@Nonnull Call call, @Nonnull IOException e) {
+            completed++;
+            failure = e;
+            if(winner == null && held != null && completed == calls.size()) {
+                winnerCall = heldCall;
+                winner = held;
+                held = null;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void onResponse(@Nonnull Call call, @Nonnull Response response) {
+            final Response loser;
+            synchronized(this) {
+                completed++;
+                if(winner != null) {
+                    loser = response;
+                } else if(!isRetryable(response.code()) || completed == calls.size()) {
+                    winnerCall = call;
+                    winner = response;
+                    loser = held;
+                    held = null;
+                    notifyAll();
+                } else if(held == null) {
+                    heldCall = call;
+                    held = response;
+                    return;
+                } else {
+                    loser = response;
+                }
+            }
+            if(loser != null) {
+                discard(loser);
+            }
+        }
+
+        private void discard(Response response) {
+            // the winner updates the rate limiter when it's handled, but a losing 429 would go unnoticed
+            if(response.code() == RateLimiter.RATE_LIMIT_CODE) {
+                rateLimiter.update(response);
+            }
+            response.close();
+        }
+
+        private static boolean isRetryable(int code) {
+            return code == RateLimiter.RATE_LIMIT_CODE || code >= 500;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.natanbc.reliqua.util;
+
+import com.github.natanbc.reliqua.request.NotFoundException;
+import com.github.natanbc.reliqua.request.PendingRequest;
+import okhttp3.Request;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Remembers which resources don't exist, so repeated lookups of them complete immediately, without going through the
+ * rate limiter or the network.
+ *
+ * <br>When a GET or HEAD request gets a 404 or 410 response, its outcome is kept for a while. Requests for the same
+ * url made before it expires complete with the same value if the mapper or error handler turned the response into a
+ * value, or with a {@link NotFoundException} otherwise. The least recently used entries are evicted once the cache is
+ * full.
+ *
+ * <br>By default misses are keyed by method, url, {@link PendingRequest#getTenant() tenant} and {@code Authorization}
+ * header, so a resource missing for one caller isn't reported missing to callers with other credentials. APIs which
+ * authenticate differently should provide their own key function.
+ *
+ * @see PendingRequestBuilder#setNegativeCache(NegativeCache)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class NegativeCache {
+    /**
+     * Keys requests by method, url, tenant and {@code Authorization} header.
+     */
+    public static final Function<PendingRequest<?>, String> DEFAULT_KEY = request -> {
+        final Request r = request.getHttpRequest();
+        return r.method() + ' ' + r.url() + '\0' + request.getTenant() + '\0' + r.header("Authorization");
+    };
+
+    private final long ttlNanos;
+    private final Function<? super PendingRequest<?>, String> keyFunction;
+    private final Map<String, Miss> entries;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param ttl How long misses are remembered.
+     * @param unit Unit of the ttl.
+     * @param maxSize How many misses are remembered.
+     * @param keyFunction Returns the key a request's miss is stored under. Requests with equal keys share misses.
+     */
+    public NegativeCache(long ttl, @Nonnull TimeUnit unit, int maxSize, @Nonnull Function<? super PendingRequest<?>, String> keyFunction) {
+        if(ttl <= 0) {
+            throw new IllegalArgumentException("TTL must be positive");
+        }
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be positive");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.keyFunction = Objects.requireNonNull(keyFunction, "Key function may not be null");
+        this.entries = new LinkedHashMap<String, Miss>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Miss> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a new cache using the {@link #DEFAULT_KEY default key}.
+     *
+     * @param ttl How long misses are remembered.
+     * @param unit Unit of the ttl.
+     * @param maxSize How many misses are remembered.
+     */
+    public NegativeCache(long ttl, @Nonnull TimeUnit unit, int maxSize) {
+        this(ttl, unit, maxSize, DEFAULT_KEY);
+    }
+
+    /**
+     * Creates a cache remembering up to 10000 misses for 30 seconds.
+     */
+    public NegativeCache() {
+        this(30, TimeUnit.SECONDS, 10000);
+    }
+
+    /**
+     * Returns whether or not responses with the given status code are cached.
+     *
+     * @param code The status code.
+     *
+     * @return true for 404 and 410.
+     */
+    @CheckReturnValue
+    public static boolean isNegative(int code) {
+        return code == 404 || code == 410;
+    }
+
+    /**
+     * Returns whether or not the given request may be answered from a negative cache. Only GET and HEAD requests are.
+     *
+     * @param request The request.
+     *
+     * @return Whether or not the request is cacheable.
+     */
+    @CheckReturnValue
+    public static boolean isCacheable(@Nonnull Request request) {
+        final String method = request.method();
+        return method.equals("GET") || method.equals("HEAD");
+    }
+
+    /**
+     * Completes the given future with the cached outcome of the request, if there's one.
+     *
+     * @param request The request, whose future is completed.
+     *
+     * @return Whether or not the request was completed.
+     */
+    public boolean complete(@Nonnull PendingRequest<?> request) {
+        final String key = keyFunction.apply(request);
+        final Miss entry;
+        synchronized(entries) {
+            final Miss e = entries.get(key);
+            if(e == null) return false;
+            if(System.nanoTime() - e.expiry >= 0) {
+                entries.remove(key);
+                return false;
+            }
+            entry = e;
+        }
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<Object> future = (CompletableFuture<Object>) request.future;
+        if(entry.failed) {
+            future.completeExceptionally(new NotFoundException(entry.code, request.getHttpRequest().url().toString()));
+        } else {
+            future.complete(entry.value);
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the outcome of a request which got a 404 or 410 response.
+     *
+     * @param request The request.
+     * @param code The status code received.
+     * @param value The value the request completed with.
+     * @param failed Whether or not the request completed exceptionally.
+     */
+    public void put(@Nonnull PendingRequest<?> request, int code, @Nullable Object value, boolean failed) {
+        if(!isNegative(code) || !isCacheable(request.getHttpRequest())) return;
+        final String key = keyFunction.apply(request);
+        final Miss entry = new Miss(code, failed ? null : value, failed, System.nanoTime() + ttlNanos);
+        synchronized(entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Forgets the cached miss of a request, for example after creating the resource.
+     *
+     * @param request The request.
+     */
+    public void invalidate(@Nonnull PendingRequest<?> request) {
+        final String key = keyFunction.apply(Objects.requireNonNull(request, "Request may not be null"));
+        synchronized(entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Forgets every cached miss.
+     */
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns how many misses are cached, including expired ones not evicted yet.
+     *
+     * @return The cache size.
+     */
+    @CheckReturnValue
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Miss {
+        final int code;
+        final Object value;
+        final boolean failed;
+        final long expiry;
+
+        Miss(int code, Object value, boolean failed, long expiry) {
+            this.code = code;
+            this.value = value;
+            this.failed = failed;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.natanbc.reliqua.util;
+
+import com.github.natanbc.reliqua.limiter.RateLimiter;
+import com.github.natanbc.reliqua.request.PendingRequest;
+import com.github.natanbc.reliqua.request.RequestException;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pages of a paginated endpoint, fetched lazily as they're consumed.
+ *
+ * <br>While the consumer works on a page, up to {@code prefetch} following pages are fetched in the background, as
+ * long as the rate limiter has that many requests left, so walking a collection doesn't wait a full round trip for
+ * every page. Each call to {@link #iterator()}, {@link #stream()} or {@link #publisher()} walks the pages again from
+ * the first one.
+ *
+ * @param <T> The type of the pages.
+ *
+ * @see PendingRequestBuilder#buildPaginated(ResponseMapper, ErrorHandler, Function)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Paginator<T> implements Iterable<T> {
+    private final Supplier<PendingRequest<T>> first;
+    private final Function<? super T, ? extends PendingRequest<T>> next;
+    private final RateLimiter rateLimiter;
+    private volatile int prefetch = 2;
+
+    Paginator(@Nonnull Supplier<PendingRequest<T>> first, @Nonnull Function<? super T, ? extends PendingRequest<T>> next,
+              @Nonnull RateLimiter rateLimiter) {
+        this.first = first;
+        this.next = next;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets how many pages may be fetched ahead of the one being consumed. Defaults to 2.
+     *
+     * @param prefetch How many pages to fetch ahead.
+     *
+     * @return This paginator.
+     */
+    @Nonnull
+    public Paginator<T> setPrefetch(int prefetch) {
+        if(prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch must be positive");
+        }
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    @CheckReturnValue
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Returns a publisher of the pages. Pages are only fetched as they're requested by the subscriber, the prefetch
+     * setting is not used.
+     *
+     * @return A publisher of the pages.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public Publisher<T> publisher() {
+        return RequestPublisher.paged(first.get(), next);
+    }
+
+    /**
+     * Returns a lazy iterator over the pages. {@link Iterator#hasNext() hasNext} blocks until the next page arrives,
+     * and both it and {@link Iterator#next() next} throw a {@link RequestException} if a page fails.
+     *
+     * @return An iterator over the pages.
+     */
+    @Nonnull
+    @Override
+    public Iterator<T> iterator() {
+        PageIterator<T> iterator = new PageIterator<>(rateLimiter, prefetch);
+        publisher().subscribe(iterator);
+        return iterator;
+    }
+
+    /**
+     * Returns a lazy, sequential stream of the pages. Closing the stream stops fetching pages.
+     *
+     * @return A stream of the pages.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public Stream<T> stream() {
+        PageIterator<T> iterator = (PageIterator<T>) iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::cancel);
+    }
+
+    private static class PageIterator<T> implements Iterator<T>, Subscriber<T> {
+        private static final Object COMPLETE = new Object();
+
+        private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        private final RateLimiter rateLimiter;
+        private final int prefetch;
+        private Subscription subscription;
+        private long requested;
+        private long consumed;
+        private Object head;
+
+        PageIterator(RateLimiter rateLimiter, int prefetch) {
+            this.rateLimiter = rateLimiter;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            synchronized(this) {
+                this.subscription = subscription;
+            }
+            topUp();
+        }
+
+        @Override
+        public void onNext(T page) {
+            signals.add(page);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            signals.add(error instanceof RequestException ? error : new RequestException(error));
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add(COMPLETE);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(head == null) {
+                try {
+                    head = signals.take();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RequestException(e);
+                }
+            }
+            if(head instanceof RequestException) {
+                throw (RequestException) head;
+            }
+            return head != COMPLETE;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T page = (T) head;
+            head = null;
+            synchronized(this) {
+                consumed++;
+            }
+            topUp();
+            return page;
+        }
+
+        void cancel() {
+            Subscription s;
+            synchronized(this) {
+                s = subscription;
+            }
+            if(s != null) s.cancel();
+        }
+
+        /**
+         * Requests pages until {@code prefetch} are fetched or waiting to be consumed. Only fetches more than one page
+         * ahead if the rate limiter has room for them, so prefetching doesn't take the budget other requests need.
+         */
+        private void topUp() {
+            final long missing;
+            final Subscription s;
+            synchronized(this) {
+                final int ahead = Math.min(prefetch, Math.max(1, rateLimiter.getRemainingRequests()));
+                missing = ahead - (requested - consumed);
+                if(missing <= 0) return;
+                requested += missing;
+                s = subscription;
+            }
+            s.request(missing);
+        }
+    }
+}
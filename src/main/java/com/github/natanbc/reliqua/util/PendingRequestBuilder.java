@@ -4,22 +4,40 @@ import com.github.natanbc.reliqua.Reliqua;
 import com.github.natanbc.reliqua.limiter.RateLimiter;
 import com.github.natanbc.reliqua.request.PendingRequest;
 import com.github.natanbc.reliqua.request.RequestContext;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.IntPredicate;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class PendingRequestBuilder {
+    // bytes asked from each FileChannel#transferFrom call
+    private static final long TRANSFER_SIZE = 1 << 20;
+
     private final Reliqua api;
     private final Request request;
     private RateLimiter rateLimiter;
     private StatusCodeValidator statusCodeValidator;
+    private String batchKey;
+    private HedgePolicy hedgePolicy;
+    private int priority;
+    private String tenant;
+    private ClientOverrides clientOverrides = ClientOverrides.NONE;
+    private String coalescingKey;
+    private NegativeCache negativeCache;
 
     public PendingRequestBuilder(@Nonnull Reliqua api, @Nonnull Request request) {
         this.api = Objects.requireNonNull(api, "API may not be null");
@@ -46,6 +64,201 @@ public class PendingRequestBuilder {
         return setStatusCodeValidator(StatusCodeValidator.wrap(predicate));
     }
 
+    /**
+     * Sets the priority of this request. When its rate limiter's queue is full, lower priority requests may be dropped
+     * to make room for higher priority ones. Defaults to 0.
+     *
+     * @param priority The priority, higher values are more important.
+     *
+     * @return This builder.
+     *
+     * @see com.github.natanbc.reliqua.limiter.QueueSettings.OverflowPolicy#DROP_LOWEST_PRIORITY
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Sets the tenant this request is sent on behalf of. When several tenants have requests waiting for the same
+     * rate limiter, they take turns instead of waiting behind each other.
+     *
+     * @param tenant The tenant, or null.
+     *
+     * @return This builder.
+     *
+     * @see com.github.natanbc.reliqua.limiter.QueueSettings#setTenantWeight(String, int)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setTenant(@Nullable String tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    /**
+     * Sets the key used to coalesce this request with others, for requests where only the latest one matters, such as
+     * updates to the same resource. If an older request with the same key and tenant is still waiting for the rate
+     * limiter, this request takes its place and the older one completes with this request's outcome, so only one of
+     * them is sent.
+     *
+     * <br>Requests with the same key should return the same type.
+     *
+     * @param coalescingKey The coalescing key, or null to never coalesce.
+     *
+     * @return This builder.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setCoalescingKey(@Nullable String coalescingKey) {
+        this.coalescingKey = coalescingKey;
+        return this;
+    }
+
+    /**
+     * Sets the cache remembering whether this request's resource was recently reported missing. Only GET and HEAD
+     * requests are cached.
+     *
+     * @param negativeCache The cache, or null to always send the request.
+     *
+     * @return This builder.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setNegativeCache(@Nullable NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+        return this;
+    }
+
+    /**
+     * Sets the client settings overridden for this request. The request is sent with a client derived from the main
+     * one, sharing its connection pool and dispatcher.
+     *
+     * @param clientOverrides The overrides, or null to use the main client.
+     *
+     * @return This builder.
+     *
+     * @see Reliqua#getClient(ClientOverrides)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setClientOverrides(@Nullable ClientOverrides clientOverrides) {
+        this.clientOverrides = clientOverrides == null ? ClientOverrides.NONE : clientOverrides;
+        return this;
+    }
+
+    /**
+     * Sets the connect timeout of this request.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return This builder.
+     *
+     * @see ClientOverrides#withConnectTimeout(long, TimeUnit)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setConnectTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return setClientOverrides(clientOverrides.withConnectTimeout(timeout, unit));
+    }
+
+    /**
+     * Sets the read timeout of this request.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return This builder.
+     *
+     * @see ClientOverrides#withReadTimeout(long, TimeUnit)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setReadTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return setClientOverrides(clientOverrides.withReadTimeout(timeout, unit));
+    }
+
+    /**
+     * Sets the call timeout of this request, bounding how long the rate limiter's thread waits for it.
+     *
+     * @param timeout The timeout, 0 for none.
+     * @param unit Unit of the timeout.
+     *
+     * @return This builder.
+     *
+     * @see ClientOverrides#withCallTimeout(long, TimeUnit)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setCallTimeout(long timeout, @Nonnull TimeUnit unit) {
+        return setClientOverrides(clientOverrides.withCallTimeout(timeout, unit));
+    }
+
+    /**
+     * Sets the policy used to hedge this request if it's slow. Only idempotent requests may be hedged.
+     *
+     * @param hedgePolicy The hedge policy, or null to send a single attempt.
+     *
+     * @return This builder.
+     *
+     * @throws IllegalArgumentException If the request method isn't idempotent.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setHedgePolicy(@Nullable HedgePolicy hedgePolicy) {
+        if (hedgePolicy != null && !isIdempotent(request.method())) {
+            throw new IllegalArgumentException("Only idempotent requests may be hedged, got " + request.method());
+        }
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Sets the key used to group this request with others when built with {@link #buildBatched(RequestBatcher)}.
+     * Defaults to the request url without its query.
+     *
+     * @param batchKey The batch key.
+     *
+     * @return This builder.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequestBuilder setBatchKey(@Nullable String batchKey) {
+        this.batchKey = batchKey;
+        return this;
+    }
+
+    /**
+     * Builds a request which is sent as part of a bulk request by the given batcher, instead of on its own. The bulk
+     * request goes through this builder's rate limiter unless the batcher has one.
+     *
+     * <br>The bulk request is sent with the client overrides, hedge policy, priority and tenant of the first request
+     * of its batch; requests which should be sent with different settings should use different batch keys. Hedging
+     * only applies if the bulk request's method is idempotent. The status code validator, coalescing key and negative
+     * cache of this builder are not used, and the batcher's validator applies to the bulk request.
+     *
+     * @param batcher The batcher which sends this request.
+     * @param <T> The type returned by the request.
+     *
+     * @return A request sent through the batcher.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public <T>PendingRequest<T> buildBatched(@Nonnull RequestBatcher<T> batcher) {
+        Objects.requireNonNull(batcher, "Batcher may not be null");
+
+        String key = batchKey;
+        if (key == null) {
+            key = request.url().newBuilder().query(null).fragment(null).build().toString();
+        }
+
+        return batcher.createRequest(key, request, rateLimiter == null ? api.getRateLimiter(request.url().toString()) : rateLimiter,
+                clientOverrides, hedgePolicy, priority, tenant);
+    }
+
     @Nonnull
     @CheckReturnValue
     public <T>PendingRequest<T> build(@Nonnull ResponseMapper<T> mapper, @Nullable ErrorHandler<T> errorHandler) {
@@ -56,7 +269,86 @@ public class PendingRequestBuilder {
             rateLimiter = api.getRateLimiter(request.url().toString());
         }
 
+        return createRequest(request, mapper, errorHandler);
+    }
+
+    /**
+     * Builds a paginator walking the pages of a paginated endpoint, starting with this builder's request. Every page
+     * is requested with the settings of this builder, using the rate limiter of the first page.
+     *
+     * @param mapper Maps a response to a page.
+     * @param errorHandler Handles unexpected status codes.
+     * @param nextPage Returns the request for the page after the given one, or null if it's the last page.
+     * @param <T> The type of the pages.
+     *
+     * @return A paginator over the pages.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public <T>Paginator<T> buildPaginated(@Nonnull ResponseMapper<T> mapper, @Nullable ErrorHandler<T> errorHandler,
+                                          @Nonnull Function<? super T, Request> nextPage) {
+        Objects.requireNonNull(mapper, "Mapper may not be null");
+        Objects.requireNonNull(nextPage, "Next page function may not be null");
+
+        if (rateLimiter == null) {
+            rateLimiter = api.getRateLimiter(request.url().toString());
+        }
+
+        return new Paginator<>(
+                () -> createRequest(request, mapper, errorHandler),
+                page -> {
+                    Request next = nextPage.apply(page);
+                    return next == null ? null : createRequest(next, mapper, errorHandler);
+                },
+                rateLimiter
+        );
+    }
+
+    private <T>PendingRequest<T> createRequest(Request request, ResponseMapper<T> mapper, ErrorHandler<T> errorHandler) {
+        final HedgePolicy hedgePolicy = this.hedgePolicy;
+        final int priority = this.priority;
+        final String tenant = this.tenant;
+        final ClientOverrides clientOverrides = this.clientOverrides;
+        final String coalescingKey = this.coalescingKey;
+        final NegativeCache negativeCache = NegativeCache.isCacheable(request) ? this.negativeCache : null;
+
         return new PendingRequest<T>(api, rateLimiter, request, statusCodeValidator) {
+            @Override
+            public int getPriority() {
+                return priority;
+            }
+
+            @Override
+            public String getTenant() {
+                return tenant;
+            }
+
+            @Override
+            public String getCoalescingKey() {
+                return coalescingKey;
+            }
+
+            @Nonnull
+            @Override
+            protected Response call() throws IOException {
+                final OkHttpClient client = getApi().getClient(clientOverrides);
+                final Response response = hedgePolicy == null
+                        ? client.newCall(getHttpRequest()).execute()
+                        : hedgePolicy.execute(client, getHttpRequest(), getRateLimiter());
+                return response;
+            }
+
+            @Override
+            protected void dispatch() {
+                if(negativeCache != null) {
+                    if(negativeCache.complete(this)) {
+                        return;
+                    }
+                    future.whenComplete((result, error) -> negativeCache.put(this, getLastStatusCode(), result, error != null));
+                }
+                super.dispatch();
+            }
+
             @Nullable
             @Override
             protected T onSuccess(@Nonnull Response response) throws IOException {
@@ -73,4 +365,118 @@ public class PendingRequestBuilder {
             }
         };
     }
+
+    /**
+     * Builds a request whose response body is read into a buffer from the given pool and handed to the mapper. The
+     * buffer is returned to the pool once the mapper returns, so bodies are never copied to the heap. Bodies larger
+     * than the pool's buffers fail the request.
+     *
+     * @param pool The pool buffers are taken from.
+     * @param mapper Maps the buffer, flipped for reading.
+     * @param errorHandler Handles unexpected status codes.
+     * @param <T> The type returned by the request.
+     *
+     * @return A request reading its body into a pooled buffer.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public <T>PendingRequest<T> buildToBuffer(@Nonnull BufferPool pool, @Nonnull BufferMapper<T> mapper, @Nullable ErrorHandler<T> errorHandler) {
+        Objects.requireNonNull(pool, "Pool may not be null");
+        Objects.requireNonNull(mapper, "Mapper may not be null");
+
+        return build(response -> {
+            final ByteBuffer buffer = pool.acquire();
+            try {
+                final ResponseBody body = response.body();
+                if (body != null) {
+                    final BufferedSource source = body.source();
+                    while (buffer.hasRemaining() && source.read(buffer) != -1);
+                    if (!buffer.hasRemaining() && !source.exhausted()) {
+                        throw new IOException("Response body is larger than the pool's buffers (" + pool.getBufferSize() + " bytes)");
+                    }
+                }
+                buffer.flip();
+                return mapper.apply(buffer);
+            } finally {
+                pool.release(buffer);
+            }
+        }, errorHandler);
+    }
+
+    /**
+     * Builds a request whose response body is transferred into the given channel, starting at the given position,
+     * which may not be past the end of the channel. The request returns how many bytes were written.
+     *
+     * @param channel The channel to write to.
+     * @param position Position in the channel where the body is written.
+     * @param errorHandler Handles unexpected status codes.
+     *
+     * @return A request writing its body to the channel.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequest<Long> buildToChannel(@Nonnull FileChannel channel, long position, @Nullable ErrorHandler<Long> errorHandler) {
+        Objects.requireNonNull(channel, "Channel may not be null");
+        if (position < 0) {
+            throw new IllegalArgumentException("Position may not be negative");
+        }
+
+        return build(response -> {
+            final ResponseBody body = response.body();
+            if (body == null) {
+                return 0L;
+            }
+            final BufferedSource source = body.source();
+            long written = 0;
+            // transferFrom may stop before the end of the body
+            while (!source.exhausted()) {
+                final long transferred = channel.transferFrom(source, position + written, TRANSFER_SIZE);
+                if (transferred == 0) {
+                    // nothing is transferred to positions past the end of the file
+                    throw new IOException("Position " + (position + written) + " is past the end of the channel (" + channel.size() + " bytes)");
+                }
+                written += transferred;
+            }
+            return written;
+        }, errorHandler);
+    }
+
+    /**
+     * Builds a request whose response body is written to the given sink, which is flushed afterwards. The request
+     * returns how many bytes were written.
+     *
+     * @param sink The sink to write to.
+     * @param errorHandler Handles unexpected status codes.
+     *
+     * @return A request writing its body to the sink.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public PendingRequest<Long> buildToSink(@Nonnull BufferedSink sink, @Nullable ErrorHandler<Long> errorHandler) {
+        Objects.requireNonNull(sink, "Sink may not be null");
+
+        return build(response -> {
+            final ResponseBody body = response.body();
+            if (body == null) {
+                return 0L;
+            }
+            // moves the segments read from the socket into the sink instead of copying them
+            final long written = body.source().readAll(sink);
+            sink.flush();
+            return written;
+        }, errorHandler);
+    }
+
+    static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
 }
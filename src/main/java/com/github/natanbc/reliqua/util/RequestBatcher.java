@@ -0,0 +1,375 @@
+package com.github.natanbc.reliqua.util;
+
+import com.github.natanbc.reliqua.Reliqua;
+import com.github.natanbc.reliqua.limiter.RateLimiter;
+import com.github.natanbc.reliqua.request.PendingRequest;
+import com.github.natanbc.reliqua.request.RequestException;
+import com.github.natanbc.reliqua.request.RequestRejectedException;
+import com.github.natanbc.reliqua.request.ShutdownException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers requests sharing a batch key and sends them as a single bulk request, so N lookups on an endpoint with
+ * bulk support only use one request worth of rate limit budget.
+ *
+ * <br>A batch is sent once it holds {@link #setMaxSize(int) max size} requests, or when the
+ * {@link #setWindow(long, TimeUnit) window} that started with its first request elapses. The bulk request is built
+ * by the {@link BatchCombiner combiner} and its response is split back into one result per request, in the same
+ * order, by the {@link BatchSplitter splitter}. If the bulk request fails, every request in the batch fails with the
+ * same error.
+ *
+ * <br>The bulk request is sent through the {@link #setRateLimiter(RateLimiter) batcher's rate limiter}, or if it has
+ * none, through the rate limiter the first request of the batch would have used on its own. It also uses that
+ * request's client overrides, hedge policy, priority and tenant.
+ *
+ * <br>Requests are added to a batcher with {@link PendingRequestBuilder#buildBatched(RequestBatcher)}. When the api
+ * is shut down, pending batches are sent right away and drained like any other queued request. Batches whose window
+ * elapses after that fail with a {@link ShutdownException}.
+ *
+ * @param <T> The type of object returned by each individual request.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RequestBatcher<T> implements AutoCloseable {
+    private final Reliqua api;
+    private final BatchCombiner combiner;
+    private final BatchSplitter<T> splitter;
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Runnable shutdownListener = this::flushOnShutdown;
+    private final Map<String, Batch> batches = new HashMap<>();
+    private volatile RateLimiter rateLimiter;
+    private volatile StatusCodeValidator statusCodeValidator;
+    private volatile int maxSize = 50;
+    private volatile long windowMillis = 10;
+
+    /**
+     * Creates a new batcher.
+     *
+     * @param api The api used to send the bulk requests.
+     * @param combiner Builds the bulk request for a batch.
+     * @param splitter Splits the bulk response into the results of each request.
+     * @param executor Executor used to send batches when their window elapses.
+     */
+    public RequestBatcher(@Nonnull Reliqua api, @Nonnull BatchCombiner combiner, @Nonnull BatchSplitter<T> splitter,
+                          @Nonnull ScheduledExecutorService executor) {
+        this(api, combiner, splitter, Objects.requireNonNull(executor, "Executor may not be null"), false);
+    }
+
+    /**
+     * Creates a new batcher with its own thread to send batches when their window elapses. The thread is stopped
+     * by {@link #close()}.
+     *
+     * @param api The api used to send the bulk requests.
+     * @param combiner Builds the bulk request for a batch.
+     * @param splitter Splits the bulk response into the results of each request.
+     */
+    public RequestBatcher(@Nonnull Reliqua api, @Nonnull BatchCombiner combiner, @Nonnull BatchSplitter<T> splitter) {
+        this(api, combiner, splitter, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Reliqua batcher");
+            t.setDaemon(true);
+            return t;
+        }), true);
+    }
+
+    private RequestBatcher(Reliqua api, BatchCombiner combiner, BatchSplitter<T> splitter,
+                           ScheduledExecutorService executor, boolean ownsExecutor) {
+        this.api = Objects.requireNonNull(api, "API may not be null");
+        this.combiner = Objects.requireNonNull(combiner, "Combiner may not be null");
+        this.splitter = Objects.requireNonNull(splitter, "Splitter may not be null");
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        api.addShutdownListener(shutdownListener);
+    }
+
+    /**
+     * Sets the rate limiter used by bulk requests. If null, the limiter of the batched requests is used.
+     *
+     * @param rateLimiter The rate limiter for bulk requests.
+     *
+     * @return This batcher.
+     */
+    @Nonnull
+    public RequestBatcher<T> setRateLimiter(@Nullable RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the validator for the status code of bulk responses.
+     *
+     * @param statusCodeValidator The validator for bulk responses.
+     *
+     * @return This batcher.
+     */
+    @Nonnull
+    public RequestBatcher<T> setStatusCodeValidator(@Nullable StatusCodeValidator statusCodeValidator) {
+        this.statusCodeValidator = statusCodeValidator;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of requests sent in a single bulk request. Defaults to 50.
+     *
+     * @param maxSize The maximum batch size.
+     *
+     * @return This batcher.
+     */
+    @Nonnull
+    public RequestBatcher<T> setMaxSize(int maxSize) {
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be positive");
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Sets how long a batch waits for more requests after its first one. Defaults to 10 milliseconds.
+     *
+     * @param window How long to wait.
+     * @param unit Unit of the window.
+     *
+     * @return This batcher.
+     */
+    @Nonnull
+    public RequestBatcher<T> setWindow(long window, @Nonnull TimeUnit unit) {
+        if(window < 0) {
+            throw new IllegalArgumentException("Window may not be negative");
+        }
+        this.windowMillis = unit.toMillis(window);
+        return this;
+    }
+
+    @CheckReturnValue
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns how many requests are waiting for their batch to be sent.
+     *
+     * @return The number of requests waiting.
+     */
+    @CheckReturnValue
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for(Batch batch : batches.values()) {
+            count += batch.items.size();
+        }
+        return count;
+    }
+
+    /**
+     * Sends every pending batch immediately.
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    /**
+     * Sends every pending batch and, if this batcher created its own thread, stops it. Batchers which are discarded
+     * before their api is shut down should be closed, since the api keeps a reference to them until then.
+     */
+    @Override
+    public void close() {
+        api.removeShutdownListener(shutdownListener);
+        flush();
+        if(ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private void flushOnShutdown() {
+        // sent even though the api is shut down, these requests were submitted before it was
+        flush(true);
+    }
+
+    private void flush(boolean shuttingDown) {
+        List<Batch> toSend;
+        synchronized(this) {
+            toSend = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        for(Batch batch : toSend) {
+            batch.timeout.cancel(false);
+            send(batch, shuttingDown);
+        }
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    PendingRequest<T> createRequest(@Nonnull String batchKey, @Nonnull Request request, @Nonnull RateLimiter rateLimiter,
+                                    @Nonnull ClientOverrides clientOverrides, @Nullable HedgePolicy hedgePolicy,
+                                    int priority, @Nullable String tenant) {
+        final RateLimiter limiter = this.rateLimiter;
+        return new Item(batchKey, request, limiter == null ? rateLimiter : limiter, clientOverrides, hedgePolicy, priority, tenant);
+    }
+
+    private void add(Item item) {
+        Batch full = null;
+        boolean closed = false;
+        synchronized(this) {
+            Batch batch = batches.get(item.batchKey);
+            if(batch == null) {
+                batch = new Batch(item.batchKey);
+                Batch scheduled = batch;
+                try {
+                    batch.timeout = executor.schedule(() -> sendIfPending(scheduled), windowMillis, TimeUnit.MILLISECONDS);
+                    batches.put(item.batchKey, batch);
+                } catch(RejectedExecutionException e) {
+                    closed = true;
+                }
+            }
+            if(!closed) {
+                batch.items.add(item);
+                if(batch.items.size() >= maxSize) {
+                    batches.remove(item.batchKey);
+                    batch.timeout.cancel(false);
+                    full = batch;
+                }
+            }
+        }
+        if(closed) {
+            item.future.completeExceptionally(new RequestRejectedException("Batcher was closed"));
+        } else if(full != null) {
+            send(full, false);
+        }
+    }
+
+    private void sendIfPending(Batch batch) {
+        synchronized(this) {
+            if(!batches.remove(batch.key, batch)) return;
+        }
+        send(batch, false);
+    }
+
+    private void send(Batch batch, boolean shuttingDown) {
+        final List<Item> items = batch.items;
+        if(!shuttingDown && api.isShutdown()) {
+            failAll(items, new ShutdownException("Reliqua instance was shut down"));
+            return;
+        }
+        final List<Request> requests = new ArrayList<>(items.size());
+        for(Item item : items) {
+            requests.add(item.getHttpRequest());
+        }
+
+        // the first request sends the bulk request, and completes the others with their part of the response
+        final Item leader = items.get(0);
+        final List<Item> others = items.subList(1, items.size());
+        try {
+            leader.bulkRequest = combiner.combine(batch.key, requests);
+        } catch(Exception e) {
+            failAll(items, e);
+            return;
+        }
+        leader.batch = items;
+        leader.batchRequests = requests;
+        leader.future.whenComplete((result, error) -> {
+            if(error != null) {
+                failAll(others, error);
+            }
+        });
+        leader.dispatch();
+    }
+
+    private static void failAll(List<? extends PendingRequest<?>> items, Throwable error) {
+        final RequestException e = error instanceof RequestException ? (RequestException) error : new RequestException(error);
+        for(PendingRequest<?> item : items) {
+            item.future.completeExceptionally(e);
+        }
+    }
+
+    private class Batch {
+        final String key;
+        final List<Item> items = new ArrayList<>();
+        ScheduledFuture<?> timeout;
+
+        Batch(String key) {
+            this.key = key;
+        }
+    }
+
+    private class Item extends PendingRequest<T> {
+        final String batchKey;
+        final ClientOverrides clientOverrides;
+        final HedgePolicy hedgePolicy;
+        final int priority;
+        final String tenant;
+        // set when this item sends the bulk request of its batch
+        volatile Request bulkRequest;
+        volatile List<Item> batch;
+        volatile List<Request> batchRequests;
+
+        Item(String batchKey, Request request, RateLimiter rateLimiter, ClientOverrides clientOverrides,
+             HedgePolicy hedgePolicy, int priority, String tenant) {
+            super(api, rateLimiter, request, statusCodeValidator);
+            this.batchKey = batchKey;
+            this.clientOverrides = clientOverrides;
+            this.hedgePolicy = hedgePolicy;
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public String getTenant() {
+            return tenant;
+        }
+
+        @Override
+        protected void dispatch() {
+            if(bulkRequest == null) {
+                add(this);
+            } else {
+                super.dispatch();
+            }
+        }
+
+        @Nonnull
+        @Override
+        protected Response call() throws IOException {
+            final OkHttpClient client = getApi().getClient(clientOverrides);
+            final Request request = bulkRequest;
+            return hedgePolicy == null || !PendingRequestBuilder.isIdempotent(request.method())
+                    ? client.newCall(request).execute()
+                    : hedgePolicy.execute(client, request, getRateLimiter());
+        }
+
+        @Nullable
+        @Override
+        protected T onSuccess(@Nonnull Response response) throws IOException {
+            final List<Item> items = batch;
+            final List<T> results = splitter.split(response, batchRequests);
+            if(results.size() != items.size()) {
+                throw new RequestException("Splitter returned " + results.size() + " results for a batch of "
+                        + items.size() + " requests");
+            }
+            for(int i = 1; i < items.size(); i++) {
+                items.get(i).future.complete(results.get(i));
+            }
+            return results.get(0);
+        }
+    }
+}
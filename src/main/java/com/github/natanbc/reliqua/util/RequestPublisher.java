@@ -0,0 +1,303 @@
+package com.github.natanbc.reliqua.util;
+
+import com.github.natanbc.reliqua.request.PendingRequest;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <a href="http://www.reactive-streams.org/">Reactive Streams</a> publisher emitting the results of requests.
+ *
+ * <br>Requests are only handed to their rate limiter once the subscriber requested their results, so a slow subscriber
+ * keeps requests out of the limiter's queue instead of piling them up there. Results of requests returning null are
+ * skipped.
+ *
+ * <br>Each publisher can only be subscribed to once, since the requests it executes complete only once.
+ *
+ * @param <T> The type emitted by this publisher.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class RequestPublisher<T> implements Publisher<T> {
+    private final Function<Subscriber<? super T>, Emitter<T>> emitterFactory;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private RequestPublisher(Function<Subscriber<? super T>, Emitter<T>> emitterFactory) {
+        this.emitterFactory = emitterFactory;
+    }
+
+    /**
+     * Creates a publisher emitting the result of a single request.
+     *
+     * @param request The request to execute.
+     * @param <T> The type returned by the request.
+     *
+     * @return A publisher of the request's result.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static <T> RequestPublisher<T> single(@Nonnull PendingRequest<T> request) {
+        Objects.requireNonNull(request, "Request may not be null");
+        return paged(request, page -> null);
+    }
+
+    /**
+     * Creates a publisher emitting pages of a paginated endpoint. Each page is requested once the previous one arrived
+     * and the subscriber requested more, so there's never more than one request in flight.
+     *
+     * @param first The request for the first page.
+     * @param next Returns the request for the page after the given one, or null if it was the last page.
+     * @param <T> The type of the pages.
+     *
+     * @return A publisher of the pages.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static <T> RequestPublisher<T> paged(@Nonnull PendingRequest<T> first,
+                                                @Nonnull Function<? super T, ? extends PendingRequest<T>> next) {
+        Objects.requireNonNull(first, "First request may not be null");
+        Objects.requireNonNull(next, "Next page function may not be null");
+        return new RequestPublisher<>(subscriber -> new PagedEmitter<>(subscriber, first, next));
+    }
+
+    /**
+     * Creates a publisher emitting the results of several requests, in the order they complete. At most
+     * {@code maxInFlight} requests are executing or waiting in their rate limiters at once, and never more than the
+     * subscriber requested.
+     *
+     * @param requests The requests to execute. Iterated lazily, as results are requested.
+     * @param maxInFlight How many requests may be in flight at once.
+     * @param <T> The type returned by the requests.
+     *
+     * @return A publisher of the results.
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static <T> RequestPublisher<T> merge(@Nonnull Iterable<? extends PendingRequest<T>> requests, int maxInFlight) {
+        Objects.requireNonNull(requests, "Requests may not be null");
+        if(maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight must be positive");
+        }
+        return new RequestPublisher<>(subscriber -> new MergeEmitter<>(subscriber, requests.iterator(), maxInFlight));
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "Subscriber may not be null");
+        if(!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("This publisher was already subscribed to"));
+            return;
+        }
+        Emitter<T> emitter = emitterFactory.apply(subscriber);
+        subscriber.onSubscribe(emitter);
+        emitter.drain();
+    }
+
+    /**
+     * Subscription delivering results to the subscriber. Every signal to the subscriber and every decision to start a
+     * request happens inside {@link #drain()}, which only ever runs on one thread at a time.
+     */
+    private abstract static class Emitter<T> implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Queue<Result<T>> results = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean terminated;
+        private long emitted;
+        // requests started whose result wasn't taken from the queue yet
+        int inFlight;
+
+        Emitter(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Starts more requests. Called from the drain loop.
+         *
+         * @param wanted How many more results the subscriber is waiting for, beyond the ones in flight.
+         */
+        abstract void fetch(long wanted);
+
+        /**
+         * Called from the drain loop with each successful result, before it's emitted.
+         */
+        abstract void onResult(T value);
+
+        /**
+         * Whether every result was received. Called from the drain loop.
+         */
+        abstract boolean isComplete();
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " items, must be positive (rule 3.9)");
+            } else {
+                requested.accumulateAndGet(n, (a, b) -> {
+                    long sum = a + b;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void start(PendingRequest<T> request) {
+            inFlight++;
+            request.async(value -> {
+                results.add(new Result<>(value, null));
+                drain();
+            }, error -> {
+                results.add(new Result<>(null, error));
+                drain();
+            });
+        }
+
+        void drain() {
+            if(wip.getAndIncrement() != 0) return;
+            do {
+                if(terminated) {
+                    results.clear();
+                    continue;
+                }
+                if(cancelled) {
+                    terminated = true;
+                    results.clear();
+                    continue;
+                }
+                if(invalidRequest != null) {
+                    terminate(invalidRequest);
+                    continue;
+                }
+                try {
+                    Result<T> result;
+                    while((result = results.peek()) != null) {
+                        if(result.error == null && result.value != null && emitted == requested.get()) break;
+                        results.poll();
+                        inFlight--;
+                        if(result.error != null) {
+                            terminate(result.error);
+                            break;
+                        }
+                        onResult(result.value);
+                        if(result.value != null) {
+                            emitted++;
+                            subscriber.onNext(result.value);
+                        }
+                        if(cancelled) break;
+                    }
+                    if(terminated || cancelled) continue;
+                    if(isComplete() && inFlight == 0) {
+                        terminate(null);
+                        continue;
+                    }
+                    final long wanted = requested.get() - emitted - inFlight;
+                    if(wanted > 0) {
+                        fetch(wanted);
+                    }
+                } catch(Throwable t) {
+                    terminate(t);
+                }
+            } while(wip.decrementAndGet() != 0);
+        }
+
+        private void terminate(Throwable error) {
+            terminated = true;
+            results.clear();
+            if(error == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(error);
+            }
+        }
+    }
+
+    private static class PagedEmitter<T> extends Emitter<T> {
+        private final Function<? super T, ? extends PendingRequest<T>> nextPage;
+        private PendingRequest<T> next;
+
+        PagedEmitter(Subscriber<? super T> subscriber, PendingRequest<T> first, Function<? super T, ? extends PendingRequest<T>> nextPage) {
+            super(subscriber);
+            this.next = first;
+            this.nextPage = nextPage;
+        }
+
+        @Override
+        void fetch(long wanted) {
+            if(inFlight == 0 && next != null) {
+                start(next);
+                next = null;
+            }
+        }
+
+        @Override
+        void onResult(T value) {
+            next = value == null ? null : nextPage.apply(value);
+        }
+
+        @Override
+        boolean isComplete() {
+            return next == null;
+        }
+    }
+
+    private static class MergeEmitter<T> extends Emitter<T> {
+        private final Iterator<? extends PendingRequest<T>> requests;
+        private final int maxInFlight;
+
+        MergeEmitter(Subscriber<? super T> subscriber, Iterator<? extends PendingRequest<T>> requests, int maxInFlight) {
+            super(subscriber);
+            this.requests = requests;
+            this.maxInFlight = maxInFlight;
+        }
+
+        @Override
+        void fetch(long wanted) {
+            while(wanted-- > 0 && inFlight < maxInFlight && requests.hasNext()) {
+                start(Objects.requireNonNull(requests.next(), "Requests may not contain null"));
+            }
+        }
+
+        @Override
+        void onResult(T value) {}
+
+        @Override
+        boolean isComplete() {
+            return !requests.hasNext();
+        }
+    }
+
+    private static class Result<T> {
+        final T value;
+        final Throwable error;
+
+        Result(T value, Throwable error) {
+            this.value = value;
+            this.error = error;
+        }
+    }
+}